@@ -38,6 +38,11 @@ android {
     buildFeatures {
         viewBinding = true
     }
+
+    testOptions {
+        // the utilities under test touch Log and Handler in their static state.
+        unitTests.isReturnDefaultValues = true
+    }
 }
 
 jacoco {
@@ -0,0 +1,90 @@
+package com.peppe289.echotrail;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.peppe289.echotrail.controller.callback.NotesCallback;
+import com.peppe289.echotrail.dao.notes.NotesCacheDAO;
+import com.peppe289.echotrail.model.NoteDocument;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The reconciliation of a cell compares the pins of the server with the cached ones only.
+ */
+@RunWith(AndroidJUnit4.class)
+public class NotesCacheInstrumentedTest {
+    private static final String COUNTRY = "Italia";
+    private static final String CELL = "sr60";
+
+    private NotesCacheDAO cache;
+
+    @Before
+    public void setUp() {
+        Context appContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        cache = NotesCacheDAO.getInstance(appContext);
+        cache.clear();
+    }
+
+    @Test
+    public void countInCell_ignoresNotesWithoutPin() throws InterruptedException {
+        // due pin scaricati dalla query della cella
+        cache.putAll(COUNTRY, Arrays.asList(note("a"), note("b")), true);
+        // una nota con posizione della pagina dell'utente, senza pin sul server
+        cache.putAll(COUNTRY, Collections.singletonList(note("c")));
+
+        Assert.assertEquals(Long.valueOf(2), await(callback -> cache.countInCell(COUNTRY, CELL, callback)));
+        Set<String> ids = await(callback -> cache.getIdsInCell(COUNTRY, CELL, callback));
+        Assert.assertEquals(2, ids.size());
+        Assert.assertFalse(ids.contains("c"));
+    }
+
+    @Test
+    public void countInCell_keepsPinUpdatedByOtherQueries() throws InterruptedException {
+        cache.putAll(COUNTRY, Collections.singletonList(note("a")), true);
+        // la stessa nota riletta dal feed resta un pin
+        cache.putAll(COUNTRY, Collections.singletonList(note("a")));
+
+        Assert.assertEquals(Long.valueOf(1), await(callback -> cache.countInCell(COUNTRY, CELL, callback)));
+    }
+
+    private static NoteDocument note(String id) {
+        return new NoteDocument(id, "user", "username", "content", "Napoli", null,
+                true, 40.85, 14.27, "sr60ksx07p", 0);
+    }
+
+    private interface Query<T> {
+        void run(NotesCallback<T, Exception> callback);
+    }
+
+    private static <T> T await(Query<T> query) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<T> result = new AtomicReference<>();
+        query.run(new NotesCallback<T, Exception>() {
+            @Override
+            public void onSuccess(T value) {
+                result.set(value);
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(Exception error) {
+                latch.countDown();
+            }
+        });
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        return result.get();
+    }
+}
@@ -6,8 +6,10 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -35,6 +37,42 @@ public class SuggestionsAdapter extends RecyclerView.Adapter<SuggestionsAdapter.
         this.listener = listener;
     }
 
+    /**
+     * Replaces the suggestions displayed, updating only the rows that changed.
+     *
+     * @param newSuggestions the suggestions to display
+     */
+    public void setSuggestions(List<CityProprieties> newSuggestions) {
+        List<CityProprieties> oldSuggestions = new ArrayList<>(suggestions);
+        DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldSuggestions.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newSuggestions.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                CityProprieties oldItem = oldSuggestions.get(oldItemPosition);
+                CityProprieties newItem = newSuggestions.get(newItemPosition);
+                return oldItem.latitude == newItem.latitude && oldItem.longitude == newItem.longitude;
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                return oldSuggestions.get(oldItemPosition).name.equals(newSuggestions.get(newItemPosition).name);
+            }
+        });
+
+        suggestions.clear();
+        suggestions.addAll(newSuggestions);
+        diff.dispatchUpdatesTo(this);
+    }
+
     /**
      * Inflates the item view and creates a SuggestionViewHolder.
      *
@@ -1,17 +1,31 @@
 package com.peppe289.echotrail.controller.notes;
 
-import com.google.firebase.firestore.GeoPoint;
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+import com.google.firebase.firestore.DocumentChange;
+import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.QuerySnapshot;
 import com.peppe289.echotrail.controller.callback.ControllerCallback;
 import com.peppe289.echotrail.controller.callback.NotesCallback;
 import com.peppe289.echotrail.controller.user.UserController;
+import com.peppe289.echotrail.dao.notes.NotesBatchResult;
+import com.peppe289.echotrail.dao.notes.NotesCacheDAO;
 import com.peppe289.echotrail.dao.notes.NotesDAO;
-import com.peppe289.echotrail.dao.user.UserDAO;
+import com.peppe289.echotrail.dao.notes.NotesOutbox;
+import com.peppe289.echotrail.model.NoteChange;
+import com.peppe289.echotrail.model.NoteDocument;
 import com.peppe289.echotrail.utils.ErrorType;
+import com.peppe289.echotrail.utils.GeoHash;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * The {@code NotesController} class provides high-level operations
@@ -22,19 +36,62 @@ import java.util.Map;
  * Core functionalities include:
  * <ul>
  *     <li>Saving user notes with optional geolocation data.</li>
- *     <li>Retrieving all notes from the backend.</li>
+ *     <li>Retrieving only the notes of a given area (see {@link GeoHash}).</li>
+ *     <li>Paginated feeds of the notes written or read by the user (see {@link NotesFeed}).</li>
  * </ul>
+ * <p>
+ * Reads are offline-first: the notes already downloaded are served from {@link NotesCacheDAO}
+ * and the network is queried only for the missing ones, while stale entries are revalidated
+ * in background.
+ * </p>
  */
 public class NotesController {
 
     private static NotesDAO notesDAO;
+    @Nullable
+    private static NotesCacheDAO notesCache;
+    @Nullable
+    private static NotesOutbox notesOutbox;
+    private static NotesSubscriptionManager subscriptions;
 
-    public static void init() {
-        init(NotesDAO.getInstance());
+    public static void init(Context context) {
+        init(NotesDAO.getInstance(), NotesCacheDAO.getInstance(context), NotesOutbox.getInstance(context));
     }
 
     public static void init(NotesDAO notesDAO) {
+        init(notesDAO, null, null);
+    }
+
+    public static void init(NotesDAO notesDAO, @Nullable NotesCacheDAO notesCache, @Nullable NotesOutbox notesOutbox) {
         NotesController.notesDAO = notesDAO;
+        NotesController.notesCache = notesCache;
+        NotesController.notesOutbox = notesOutbox;
+        // init runs again when the login activity is recreated, keep the listeners already attached.
+        if (subscriptions == null || subscriptions.getNotesDAO() != notesDAO) {
+            if (subscriptions != null)
+                subscriptions.clear();
+            subscriptions = new NotesSubscriptionManager(notesDAO, new NotesSync(notesDAO, notesCache));
+        }
+    }
+
+    /**
+     * Removes the notes saved on the device, used on logout since the cache can hold
+     * notes dedicated to the user. The notes of the outbox not sent yet are dropped too.
+     */
+    public static void clearCache() {
+        if (notesCache != null)
+            notesCache.clear();
+        if (notesOutbox != null)
+            notesOutbox.clear();
+    }
+
+    /**
+     * Stores the given notes in the cache, used by the queries that don't go through
+     * the controller (like the pages of {@link NotesFeed}).
+     */
+    static void cacheNotes(@Nullable String country, Collection<NoteDocument> notes) {
+        if (notesCache != null)
+            notesCache.putAll(country, notes);
     }
 
     /**
@@ -44,6 +101,11 @@ public class NotesController {
      * by including their UID. It supports adding geolocation data (latitude and longitude),
      * a city name, and a timestamp.
      * </p>
+     * <p>
+     * The ID of the note is assigned on the device and the note goes through the {@link NotesOutbox}:
+     * the callback reports {@link SaveState#QUEUED} as soon as the note is stored locally, without
+     * waiting the network, and the outbox keeps retrying until the backend accepts it.
+     * </p>
      *
      * @param data     A map containing the note's data. The expected keys are:
      *                 <ul>
@@ -52,101 +114,293 @@ public class NotesController {
      *                     <li>"longitude" (Double): The longitude of the note's location (optional).</li>
      *                     <li>"city" (String): The name of the city where the note is created (optional).</li>
      *                 </ul>
-     * @param callback A callback invoked upon successful saving of the note.
+     * @param callback A callback invoked when the state of the note changes.
      */
     public static void saveNote(Map<String, Object> data, SaveNoteCallback callback) {
-        Map<String, Object> noteData = new HashMap<>();
-
         Object countryObj = data.get("country");
         if (countryObj == null) {
-            callback.onSavedNote(ErrorType.SAVE_NOTE_FAILED);
+            callback.onSavedNote(SaveState.FAILED, ErrorType.SAVE_NOTE_FAILED);
             return;
         }
 
         String country = countryObj.toString();
 
-        // Add mandatory fields
-        noteData.put("userId", UserController.getUid());
-        noteData.put("content", data.get("content"));
-
+        String username = null;
         try {
-            String username = (String) data.get("username");
-            if (username != null && !username.isEmpty())
-                noteData.put("username", username);
+            username = (String) data.get("username");
+            if (username != null && username.isEmpty())
+                username = null;
         } catch (Exception ignored) {
         }
 
+        String sendTo = null;
         try {
-            String sendTo = (String) data.get("send_to");
-            if (sendTo != null && !sendTo.isEmpty())
-                noteData.put("send_to", sendTo);
+            sendTo = (String) data.get("send_to");
+            if (sendTo != null && sendTo.isEmpty())
+                sendTo = null;
         } catch (Exception ignored) {
         }
 
         // Add optional geolocation data if available
-        if (data.get("latitude") != null && data.get("longitude") != null) {
-            Double latitude = (Double) data.get("latitude");
-            Double longitude = (Double) data.get("longitude");
-            GeoPoint coordinates = null;
-            if (latitude != null && longitude != null) {
-                coordinates = new GeoPoint(latitude, longitude);
+        Double latitude = (Double) data.get("latitude");
+        Double longitude = (Double) data.get("longitude");
+        boolean hasCoordinates = latitude != null && longitude != null;
+
+        NoteDocument note = new NoteDocument(
+                notesDAO.newNoteId(),
+                UserController.getUid(),
+                username,
+                (String) data.get("content"),
+                (String) data.get("city"),
+                sendTo,
+                hasCoordinates,
+                hasCoordinates ? latitude : 0,
+                hasCoordinates ? longitude : 0,
+                hasCoordinates ? GeoHash.encode(latitude, longitude) : null,
+                System.currentTimeMillis());
+
+        cacheNotes(country, Collections.singletonList(note));
+
+        NotesCallback<NotesOutbox.State, Exception> stateCallback = new NotesCallback<NotesOutbox.State, Exception>() {
+            @Override
+            public void onSuccess(NotesOutbox.State state) {
+                switch (state) {
+                    case QUEUED:
+                        callback.onSavedNote(SaveState.QUEUED, null);
+                        break;
+                    case COMMITTED:
+                        callback.onSavedNote(SaveState.COMMITTED, null);
+                        break;
+                    case FAILED:
+                        callback.onSavedNote(SaveState.FAILED, ErrorType.SAVE_NOTE_FAILED);
+                        break;
+                }
             }
-            noteData.put("coordinates", coordinates);
-        }
 
-        // Add timestamp and optional city name
-        noteData.put("timestamp", com.google.firebase.Timestamp.now());
-        noteData.put("city", data.get("city"));
+            @Override
+            public void onError(Exception error) {
+                callback.onSavedNote(SaveState.FAILED, ErrorType.SAVE_NOTE_FAILED);
+            }
+        };
 
-        // Save the note through NotesDAO
-        notesDAO.saveNote(noteData, country, new NotesCallback<String, Exception>() {
+        if (notesOutbox != null) {
+            notesOutbox.enqueue(note, country, stateCallback);
+            return;
+        }
+
+        // without the outbox the note is sent directly, relying only on the Firestore local queue.
+        stateCallback.onSuccess(NotesOutbox.State.QUEUED);
+        notesDAO.saveNote(note, country, new NotesCallback<String, Exception>() {
             @Override
             public void onSuccess(String noteId) {
-                callback.onSavedNote(null);
-                UserController.updateNotesList(noteId);
+                stateCallback.onSuccess(NotesOutbox.State.COMMITTED);
             }
 
             @Override
             public void onError(Exception error) {
-                callback.onSavedNote(ErrorType.SAVE_NOTE_FAILED);
+                // the note was cached when saved, the server doesn't have it.
+                if (notesCache != null)
+                    notesCache.removeAll(Collections.singletonList(note.getId()));
+                stateCallback.onError(error);
             }
         });
     }
 
-    public static void getNotes(List<String> notesID, ControllerCallback<QuerySnapshot, ErrorType> callback) {
-        notesDAO.getNotes(notesID, new NotesCallback<QuerySnapshot, Exception>() {
+    /**
+     * Retrieves the notes with the given IDs, in the same order.
+     * <p>
+     * Any number of IDs is supported. The notes found in the cache are delivered without waiting
+     * the network, which is queried only for the missing ones; cached notes older than
+     * {@link NotesCacheDAO#FRESH_MS} are fetched again in background to keep the cache updated.
+     * If only a part of the notes can be fetched, the notes found are delivered with
+     * {@code onSuccess} and then {@code onError} is invoked too.
+     * </p>
+     *
+     * @param notesID  the IDs of the notes to fetch
+     * @param callback A callback invoked with the notes found.
+     */
+    public static void getNotes(List<String> notesID, ControllerCallback<List<NoteDocument>, ErrorType> callback) {
+        if (notesCache == null) {
+            fetchNotes(notesID, new HashMap<>(), callback);
+            return;
+        }
+
+        notesCache.get(notesID, new NotesCallback<Map<String, NotesCacheDAO.Entry>, Exception>() {
             @Override
-            public void onSuccess(QuerySnapshot result) {
-                callback.onSuccess(result);
+            public void onSuccess(Map<String, NotesCacheDAO.Entry> cached) {
+                Map<String, NoteDocument> found = new HashMap<>();
+                List<String> missing = new ArrayList<>();
+                List<String> stale = new ArrayList<>();
+                for (String id : notesID) {
+                    NotesCacheDAO.Entry entry = cached.get(id);
+                    if (entry == null) {
+                        missing.add(id);
+                        continue;
+                    }
+
+                    found.put(id, entry.getNote());
+                    if (!entry.isFresh())
+                        stale.add(id);
+                }
+
+                if (missing.isEmpty()) {
+                    callback.onSuccess(ordered(notesID, found));
+                    if (!stale.isEmpty())
+                        fetchNotes(stale, new HashMap<>(), null);
+                    return;
+                }
+
+                // stale notes are revalidated in the same round-trip of the missing ones.
+                missing.addAll(stale);
+                fetchNotes(missing, found, callback);
             }
 
             @Override
             public void onError(Exception error) {
+                fetchNotes(notesID, new HashMap<>(), callback);
+            }
+        });
+    }
+
+    /**
+     * Fetches the given notes from the network and updates the cache.
+     *
+     * @param notesID  the IDs to fetch
+     * @param found    the notes already available, delivered together with the fetched ones
+     * @param callback the callback of {@link #getNotes}, {@code null} for a background revalidation
+     */
+    private static void fetchNotes(List<String> notesID, Map<String, NoteDocument> found,
+                                   @Nullable ControllerCallback<List<NoteDocument>, ErrorType> callback) {
+        List<String> requested = new ArrayList<>(found.keySet());
+        requested.addAll(notesID);
+
+        notesDAO.getNotes(notesID, new NotesCallback<NotesBatchResult, Exception>() {
+            @Override
+            public void onSuccess(NotesBatchResult result) {
+                List<NoteDocument> fetched = new ArrayList<>();
+                for (DocumentSnapshot document : result.getDocuments())
+                    fetched.add(NoteDocument.fromSnapshot(document));
+
+                // what wasn't returned by a successful chunk doesn't exist anymore.
+                Set<String> deleted = new HashSet<>(notesID);
+                deleted.removeAll(result.getFailedIds());
+                for (NoteDocument note : fetched) {
+                    deleted.remove(note.getId());
+                    found.put(note.getId(), note);
+                }
+                for (String id : deleted)
+                    found.remove(id);
+
+                if (notesCache != null) {
+                    notesCache.putAll(null, fetched);
+                    notesCache.removeAll(deleted);
+                }
+
+                if (callback == null)
+                    return;
+
+                callback.onSuccess(ordered(requested, found));
+                if (result.hasFailures())
+                    callback.onError(ErrorType.GET_USER_NOTES_ERROR);
+            }
+
+            @Override
+            public void onError(Exception error) {
+                if (callback == null)
+                    return;
+
+                // offline: show at least what the cache has.
+                if (!found.isEmpty())
+                    callback.onSuccess(ordered(requested, found));
                 callback.onError(ErrorType.GET_USER_NOTES_ERROR);
             }
         });
     }
 
+    private static List<NoteDocument> ordered(List<String> notesID, Map<String, NoteDocument> notes) {
+        List<NoteDocument> result = new ArrayList<>(notes.size());
+        Set<String> added = new HashSet<>();
+        for (String id : notesID) {
+            NoteDocument note = notes.get(id);
+            if (note != null && added.add(id))
+                result.add(note);
+        }
+        return result;
+    }
+
+    /**
+     * Creates a paginated feed of the notes written by the current user, from the most recent.
+     *
+     * @param pageSize how many notes are loaded for each page
+     */
+    public static NotesFeed getUserNotesFeed(int pageSize) {
+        return NotesFeed.byAuthor(notesDAO, UserController.getUid(), pageSize);
+    }
+
+    /**
+     * Creates a paginated feed of the given notes, from the last of the list.
+     *
+     * @param readNotesID the IDs of the notes read by the user
+     * @param pageSize    how many notes are loaded for each page
+     */
+    public static NotesFeed getReadNotesFeed(List<String> readNotesID, int pageSize) {
+        return NotesFeed.byIds(notesDAO, readNotesID, pageSize);
+    }
+
     public static void updateReadNotesList(String noteId) {
         UserController.updateReadNotesList(noteId);
     }
 
     /**
-     * Retrieves all notes available in the backend database.
+     * Subscribes to the notes of an area of the given country, set and moved with
+     * {@link NotesSubscriptionManager.AreaSubscription#setViewport}.
      * <p>
-     * The retrieved notes are provided via the callback interface {@link ControllerCallback}.
+     * The callback receives only the deltas of every update (added, modified or removed notes),
+     * so the work done by the caller is proportional to what changed and not to the notes
+     * already shown. The notes of the area already in the cache are delivered immediately as
+     * {@link NoteChange.Type#ADDED}; when the first snapshot of a cell comes from the server,
+     * the cached notes of the cell that no longer exist are delivered as
+     * {@link NoteChange.Type#REMOVED}. Only the pins of the notes are listened, the bodies are
+     * loaded with {@link #getNotes} when needed.
+     * </p>
+     * <p>
+     * The listeners are owned by the {@link NotesSubscriptionManager}: the subscription must be
+     * closed when the notes are no longer shown.
      * </p>
      *
-     * @param callback A callback invoked with the list of notes retrieved.
+     * @param callback A callback invoked with the changes of the area.
      */
-    public static void getAllNotes(String country, ControllerCallback<QuerySnapshot, ErrorType> callback) {
-        getAllNotes(country, callback, false);
+    public static NotesSubscriptionManager.AreaSubscription subscribeNotesInArea(
+            String country, ControllerCallback<List<NoteChange>, ErrorType> callback) {
+        return subscriptions.subscribeArea(country, toObserver(callback));
     }
 
-    public static void getAllNotes(String country, ControllerCallback<QuerySnapshot, ErrorType> callback, boolean listen) {
-        notesDAO.getAllNotes(country, new NotesCallback<QuerySnapshot, Exception>() {
+    /**
+     * Subscribes to the notes dedicated to the current user.
+     * <p>
+     * Like {@link #subscribeNotesInArea}, the callback receives only the changes of every update.
+     * </p>
+     *
+     * @param callback A callback invoked with the changes of the inbox.
+     */
+    public static NotesSubscriptionManager.Subscription subscribeDedicatedNotes(
+            ControllerCallback<List<NoteChange>, ErrorType> callback) {
+        return subscriptions.subscribeInbox(UserController.getUid(), toObserver(callback));
+    }
+
+    /**
+     * Removes every listener of the notes, used on logout.
+     */
+    public static void unsubscribeAll() {
+        if (subscriptions != null)
+            subscriptions.clear();
+    }
+
+    private static NotesCallback<List<NoteChange>, Exception> toObserver(
+            ControllerCallback<List<NoteChange>, ErrorType> callback) {
+        return new NotesCallback<List<NoteChange>, Exception>() {
             @Override
-            public void onSuccess(QuerySnapshot result) {
+            public void onSuccess(List<NoteChange> result) {
                 callback.onSuccess(result);
             }
 
@@ -154,7 +408,79 @@ public class NotesController {
             public void onError(Exception error) {
                 callback.onError(ErrorType.GET_USER_NOTES_ERROR);
             }
-        }, listen);
+        };
+    }
+
+    /**
+     * Delivers the cached pins of the given area as {@link NoteChange.Type#ADDED}.
+     *
+     * @param box {@code {south, west, north, east}}
+     */
+    static void emitCachedArea(String country, double[] box, NotesCallback<List<NoteChange>, Exception> observer) {
+        if (notesCache == null)
+            return;
+
+        notesCache.getInArea(country, box[0], box[1], box[2], box[3], new NotesCallback<List<NoteDocument>, Exception>() {
+            @Override
+            public void onSuccess(List<NoteDocument> cached) {
+                List<NoteChange> changes = new ArrayList<>(cached.size());
+                for (NoteDocument note : cached)
+                    changes.add(new NoteChange(NoteChange.Type.ADDED, note));
+                if (!changes.isEmpty())
+                    observer.onSuccess(changes);
+            }
+
+            @Override
+            public void onError(Exception error) {
+            }
+        });
+    }
+
+    /**
+     * Converts the changes of a snapshot to {@link NoteChange}s and applies them to the cache.
+     *
+     * @param country the country of the notes, {@code null} if unknown
+     * @param pins    whether the snapshot is of a query of the pins of a cell
+     */
+    static List<NoteChange> toChanges(QuerySnapshot snapshot, @Nullable String country, boolean pins) {
+        List<NoteChange> changes = new ArrayList<>();
+        List<NoteDocument> updated = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (DocumentChange change : snapshot.getDocumentChanges()) {
+            NoteDocument note = NoteDocument.fromSnapshot(change.getDocument());
+            if (change.getType() == DocumentChange.Type.REMOVED) {
+                removed.add(note.getId());
+                changes.add(new NoteChange(NoteChange.Type.REMOVED, note));
+            } else {
+                updated.add(note);
+                changes.add(new NoteChange(change.getType() == DocumentChange.Type.ADDED
+                        ? NoteChange.Type.ADDED : NoteChange.Type.MODIFIED, note));
+            }
+        }
+
+        if (notesCache != null) {
+            notesCache.putAll(country, updated, pins);
+            notesCache.removeAll(removed);
+        }
+        return changes;
+    }
+
+    /**
+     * The state of a note passed to {@link #saveNote}.
+     */
+    public enum SaveState {
+        /**
+         * The note is stored on the device and will be shared as soon as the network allows it.
+         */
+        QUEUED,
+        /**
+         * The note was written to the backend.
+         */
+        COMMITTED,
+        /**
+         * The note couldn't be saved.
+         */
+        FAILED,
     }
 
     /**
@@ -162,8 +488,11 @@ public class NotesController {
      */
     public interface SaveNoteCallback {
         /**
-         * Called when the note has been successfully saved.
+         * Called when the state of the note changes: first {@link SaveState#QUEUED}, then
+         * {@link SaveState#COMMITTED} when the backend confirms the write.
+         *
+         * @param errorType the error, only for {@link SaveState#FAILED}
          */
-        void onSavedNote(ErrorType errorType);
+        void onSavedNote(SaveState state, @Nullable ErrorType errorType);
     }
 }
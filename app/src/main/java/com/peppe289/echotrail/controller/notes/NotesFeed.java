@@ -0,0 +1,154 @@
+package com.peppe289.echotrail.controller.notes;
+
+import androidx.annotation.Nullable;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.peppe289.echotrail.controller.callback.ControllerCallback;
+import com.peppe289.echotrail.controller.callback.NotesCallback;
+import com.peppe289.echotrail.dao.notes.NotesDAO;
+import com.peppe289.echotrail.model.NoteDocument;
+import com.peppe289.echotrail.utils.ErrorType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A paginated feed of notes, loaded one page at a time while the user scrolls.
+ * <p>
+ * Two kinds of feed are supported (see {@link NotesController#getUserNotesFeed(int)} and
+ * {@link NotesController#getReadNotesFeed(List, int)}):
+ * <ul>
+ *     <li>the notes written by a user, queried ordered by timestamp and paginated
+ *     with a {@code startAfter} cursor on the last document of the previous page;</li>
+ *     <li>a list of notes referenced by ID (like the read notes of the user), where the cursor
+ *     is the position in the list and each page is sorted by timestamp. These pages go through
+ *     {@link NotesController#getNotes(List, ControllerCallback)}, so they are served from the cache
+ *     when possible.</li>
+ * </ul>
+ * Only one page is loaded at a time, the requests done while a page is loading are ignored.
+ */
+public class NotesFeed {
+    public static final int DEFAULT_PAGE_SIZE = 15;
+
+    /**
+     * How many items from the end of the list the next page starts to be loaded.
+     */
+    public static final int PREFETCH_DISTANCE = 5;
+
+    private final NotesDAO notesDAO;
+    private final int pageSize;
+    @Nullable
+    private final String authorId;
+    @Nullable
+    private final List<String> noteIDs;
+
+    @Nullable
+    private DocumentSnapshot lastDocument;
+    private int nextIndex;
+    private boolean loading;
+    private boolean endReached;
+
+    private NotesFeed(NotesDAO notesDAO, int pageSize, @Nullable String authorId, @Nullable List<String> noteIDs) {
+        this.notesDAO = notesDAO;
+        this.pageSize = Math.max(1, pageSize);
+        this.authorId = authorId;
+        this.noteIDs = noteIDs;
+    }
+
+    static NotesFeed byAuthor(NotesDAO notesDAO, String authorId, int pageSize) {
+        return new NotesFeed(notesDAO, pageSize, authorId, null);
+    }
+
+    /**
+     * @param noteIDs the IDs of the notes, the most recent last (like the arrays of the user document)
+     */
+    static NotesFeed byIds(NotesDAO notesDAO, List<String> noteIDs, int pageSize) {
+        List<String> ids = new ArrayList<>(noteIDs);
+        Collections.reverse(ids);
+        return new NotesFeed(notesDAO, pageSize, null, ids);
+    }
+
+    public boolean isLoading() {
+        return loading;
+    }
+
+    public boolean hasMore() {
+        return !endReached;
+    }
+
+    /**
+     * Checks if the next page should be requested, given the last position shown by the list.
+     *
+     * @param lastVisiblePosition the last position visible in the list
+     * @param loadedCount         how many items the list holds
+     */
+    public boolean shouldPrefetch(int lastVisiblePosition, int loadedCount) {
+        return !loading && !endReached && lastVisiblePosition >= loadedCount - PREFETCH_DISTANCE;
+    }
+
+    /**
+     * Loads the next page of the feed. Does nothing if a page is already loading or if there
+     * aren't other pages.
+     *
+     * @param callback invoked with the notes of the page, ordered from the most recent
+     */
+    public void loadNextPage(ControllerCallback<List<NoteDocument>, ErrorType> callback) {
+        if (loading || endReached)
+            return;
+
+        loading = true;
+        if (authorId != null)
+            loadAuthorPage(callback);
+        else
+            loadIdsPage(callback);
+    }
+
+    private void loadAuthorPage(ControllerCallback<List<NoteDocument>, ErrorType> callback) {
+        notesDAO.getUserNotesPage(authorId, lastDocument, pageSize, new NotesCallback<List<DocumentSnapshot>, Exception>() {
+            @Override
+            public void onSuccess(List<DocumentSnapshot> page) {
+                loading = false;
+                if (!page.isEmpty())
+                    lastDocument = page.get(page.size() - 1);
+                endReached = page.size() < pageSize;
+
+                List<NoteDocument> notes = new ArrayList<>(page.size());
+                for (DocumentSnapshot document : page)
+                    notes.add(NoteDocument.fromSnapshot(document));
+                NotesController.cacheNotes(null, notes);
+                callback.onSuccess(notes);
+            }
+
+            @Override
+            public void onError(Exception error) {
+                loading = false;
+                callback.onError(ErrorType.GET_USER_NOTES_ERROR);
+            }
+        });
+    }
+
+    private void loadIdsPage(ControllerCallback<List<NoteDocument>, ErrorType> callback) {
+        assert noteIDs != null;
+        int end = Math.min(nextIndex + pageSize, noteIDs.size());
+        List<String> window = new ArrayList<>(noteIDs.subList(nextIndex, end));
+
+        NotesController.getNotes(window, new ControllerCallback<List<NoteDocument>, ErrorType>() {
+            @Override
+            public void onSuccess(List<NoteDocument> notes) {
+                loading = false;
+                nextIndex = end;
+                endReached = end >= noteIDs.size();
+
+                List<NoteDocument> page = new ArrayList<>(notes);
+                page.sort((a, b) -> Long.compare(b.getTimestamp(), a.getTimestamp()));
+                callback.onSuccess(page);
+            }
+
+            @Override
+            public void onError(ErrorType error) {
+                loading = false;
+                callback.onError(ErrorType.GET_USER_READ_NOTES_ERROR);
+            }
+        });
+    }
+}
@@ -0,0 +1,349 @@
+package com.peppe289.echotrail.controller.notes;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.peppe289.echotrail.controller.callback.NotesCallback;
+import com.peppe289.echotrail.dao.notes.NotesDAO;
+import com.peppe289.echotrail.model.NoteChange;
+import com.peppe289.echotrail.model.NoteDocument;
+import com.peppe289.echotrail.utils.GeoHash;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the Firestore snapshot listeners of the notes.
+ * <p>
+ * Every geohash cell (and the inbox of the user) has at most one listener, shared by all the
+ * subscriptions that need it and reference counted: when the last subscription releases a cell,
+ * the listener lingers for {@link #LINGER_MS} and is then removed, so going back and forth
+ * (or recreating the map) doesn't attach the same query again. A subscription joining a cell
+ * already listened receives the notes of the cell immediately. The cells of the pins are kept in
+ * sync through {@link NotesSync}, which downloads only the pins newer than the last session.
+ * </p>
+ * <p>
+ * An {@link AreaSubscription} follows the viewport of the map with hysteresis: cells are attached
+ * for the viewport plus a margin and released only when they are far from it, and at most
+ * {@link #MAX_AREA_CELLS} cells are held by a subscription. The cells held have all the same
+ * precision, the one of the zoom level, so they never overlap; the notes of a cell released are
+ * removed from the map. {@link #clear()} removes every listener, on logout.
+ * </p>
+ * All the methods must be called from the main thread.
+ */
+public class NotesSubscriptionManager {
+    /**
+     * How long a listener without subscriptions is kept before being removed.
+     */
+    private static final long LINGER_MS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Max number of cells held by a single area subscription.
+     */
+    private static final int MAX_AREA_CELLS = 2 * GeoHash.MAX_COVERING_CELLS;
+
+    /**
+     * Fraction of the viewport size added on each side when the cells are attached.
+     */
+    private static final double ATTACH_MARGIN = 0.5;
+
+    /**
+     * Fraction of the viewport size added on each side beyond which the cells are released.
+     */
+    private static final double KEEP_MARGIN = 1.5;
+
+    private final NotesDAO notesDAO;
+    private final NotesSync notesSync;
+    private final Map<String, Cell> cells = new HashMap<>();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    NotesSubscriptionManager(NotesDAO notesDAO, NotesSync notesSync) {
+        this.notesDAO = notesDAO;
+        this.notesSync = notesSync;
+    }
+
+    NotesDAO getNotesDAO() {
+        return notesDAO;
+    }
+
+    /**
+     * A subscription to some notes, to close when they are no longer shown.
+     */
+    public interface Subscription {
+        void close();
+    }
+
+    /**
+     * Creates a subscription to the notes of a country, the area is set with
+     * {@link AreaSubscription#setViewport}.
+     */
+    AreaSubscription subscribeArea(String country, NotesCallback<List<NoteChange>, Exception> observer) {
+        return new AreaSubscription(country, observer);
+    }
+
+    /**
+     * Subscribes to the inbox of the given user (see {@link NotesDAO#listenInbox}).
+     */
+    Subscription subscribeInbox(String uid, NotesCallback<List<NoteChange>, Exception> observer) {
+        Cell cell = acquire("inbox/" + uid, null, null, observer);
+        return new Subscription() {
+            private boolean closed;
+
+            @Override
+            public void close() {
+                if (closed)
+                    return;
+                closed = true;
+                release(cell, observer);
+            }
+        };
+    }
+
+    /**
+     * Removes every listener immediately, whatever the subscriptions holding them.
+     */
+    public void clear() {
+        for (Cell cell : new ArrayList<>(cells.values())) {
+            handler.removeCallbacks(cell.detach);
+            cell.observers.clear();
+            if (cell.registration != null)
+                cell.registration.remove();
+        }
+        cells.clear();
+    }
+
+    private Cell acquire(String key, @Nullable String country, @Nullable String prefix,
+                         NotesCallback<List<NoteChange>, Exception> observer) {
+        Cell cell = cells.get(key);
+        if (cell == null) {
+            cell = new Cell(key, country, prefix);
+            cells.put(key, cell);
+            attach(cell);
+        }
+
+        handler.removeCallbacks(cell.detach);
+        if (cell.observers.add(observer) && !cell.current.isEmpty()) {
+            List<NoteChange> changes = new ArrayList<>(cell.current.size());
+            for (NoteDocument note : cell.current.values())
+                changes.add(new NoteChange(NoteChange.Type.ADDED, note));
+            observer.onSuccess(changes);
+        }
+        return cell;
+    }
+
+    private void release(Cell cell, NotesCallback<List<NoteChange>, Exception> observer) {
+        cell.observers.remove(observer);
+        if (cell.observers.isEmpty() && cells.get(cell.key) == cell) {
+            handler.removeCallbacks(cell.detach);
+            handler.postDelayed(cell.detach, LINGER_MS);
+        }
+    }
+
+    private void attach(Cell cell) {
+        NotesCallback<List<NoteChange>, Exception> listener = new NotesCallback<List<NoteChange>, Exception>() {
+            @Override
+            public void onSuccess(List<NoteChange> changes) {
+                if (cells.get(cell.key) == cell)
+                    apply(cell, changes);
+            }
+
+            @Override
+            public void onError(Exception error) {
+                for (NotesCallback<List<NoteChange>, Exception> observer : new ArrayList<>(cell.observers))
+                    observer.onError(error);
+            }
+        };
+
+        if (cell.prefix != null) {
+            cell.registration = notesSync.listenCell(cell.country, cell.prefix, listener);
+            return;
+        }
+
+        cell.registration = notesDAO.listenInbox(cell.key.substring("inbox/".length()),
+                new NotesCallback<QuerySnapshot, Exception>() {
+                    @Override
+                    public void onSuccess(QuerySnapshot snapshot) {
+                        listener.onSuccess(NotesController.toChanges(snapshot, null, false));
+                    }
+
+                    @Override
+                    public void onError(Exception error) {
+                        listener.onError(error);
+                    }
+                });
+    }
+
+    private void apply(Cell cell, List<NoteChange> changes) {
+        if (changes.isEmpty())
+            return;
+
+        for (NoteChange change : changes) {
+            if (change.getType() == NoteChange.Type.REMOVED)
+                cell.current.remove(change.getNote().getId());
+            else
+                cell.current.put(change.getNote().getId(), change.getNote());
+        }
+
+        for (NotesCallback<List<NoteChange>, Exception> observer : new ArrayList<>(cell.observers))
+            observer.onSuccess(changes);
+    }
+
+    private void detach(Cell cell) {
+        if (!cell.observers.isEmpty() || cells.get(cell.key) != cell)
+            return;
+
+        cells.remove(cell.key);
+        if (cell.registration != null)
+            cell.registration.remove();
+    }
+
+    /**
+     * A query listened by one Firestore listener: a geohash cell of the pins or an inbox.
+     */
+    private class Cell {
+        final String key;
+        @Nullable
+        final String country;
+        @Nullable
+        final String prefix;
+        final Map<String, NoteDocument> current = new LinkedHashMap<>();
+        final Set<NotesCallback<List<NoteChange>, Exception>> observers = new LinkedHashSet<>();
+        final Runnable detach = () -> detach(this);
+        @Nullable
+        ListenerRegistration registration;
+
+        Cell(String key, @Nullable String country, @Nullable String prefix) {
+            this.key = key;
+            this.country = country;
+            this.prefix = prefix;
+        }
+    }
+
+    /**
+     * A subscription to the notes of the area shown by the map.
+     */
+    public class AreaSubscription implements Subscription {
+        private final String country;
+        private final NotesCallback<List<NoteChange>, Exception> observer;
+        private final Map<String, Cell> held = new LinkedHashMap<>();
+        /**
+         * The area whose cells are attached, {@code {south, west, north, east}}.
+         */
+        @Nullable
+        private double[] covered;
+        private boolean closed;
+
+        private AreaSubscription(String country, NotesCallback<List<NoteChange>, Exception> observer) {
+            this.country = country;
+            this.observer = observer;
+        }
+
+        /**
+         * Updates the area shown. Nothing happens while the viewport stays in the area already
+         * covered, otherwise the cells of the new area are attached and the cells far from it
+         * are released.
+         */
+        public void setViewport(double south, double west, double north, double east) {
+            if (closed)
+                return;
+
+            // an antimeridian viewport is handled as the whole longitude range.
+            if (west > east) {
+                west = -180.0;
+                east = 180.0;
+            }
+
+            if (covered != null && covered[0] <= south && covered[1] <= west
+                    && covered[2] >= north && covered[3] >= east)
+                return;
+
+            double[] attachBox = expand(south, west, north, east, ATTACH_MARGIN);
+            double[] keepBox = expand(south, west, north, east, KEEP_MARGIN);
+            covered = attachBox;
+
+            // all of the same precision, chosen by the size of the viewport.
+            List<String> wanted = GeoHash.coveringPrefixes(attachBox[0], attachBox[1], attachBox[2], attachBox[3]);
+            int precision = wanted.get(0).length();
+            Set<String> wantedKeys = new HashSet<>();
+            for (String prefix : wanted)
+                wantedKeys.add(key(prefix));
+
+            int added = 0;
+            for (String key : wantedKeys) {
+                if (!held.containsKey(key))
+                    added++;
+            }
+
+            // release the cells of another zoom level, the ones far from the viewport, and the
+            // oldest ones past the limit.
+            List<NoteChange> removed = new ArrayList<>();
+            int excess = held.size() + added - MAX_AREA_CELLS;
+            Iterator<Map.Entry<String, Cell>> iterator = held.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Cell> entry = iterator.next();
+                if (wantedKeys.contains(entry.getKey()))
+                    continue;
+
+                Cell cell = entry.getValue();
+                if (excess > 0 || cell.prefix.length() != precision
+                        || !intersects(GeoHash.bounds(cell.prefix), keepBox)) {
+                    for (NoteDocument note : cell.current.values())
+                        removed.add(new NoteChange(NoteChange.Type.REMOVED, note));
+                    release(cell, observer);
+                    iterator.remove();
+                    excess--;
+                }
+            }
+            if (!removed.isEmpty())
+                observer.onSuccess(removed);
+
+            NotesController.emitCachedArea(country, attachBox, observer);
+            for (String prefix : wanted) {
+                String key = key(prefix);
+                if (!held.containsKey(key))
+                    held.put(key, acquire(key, country, prefix, observer));
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed)
+                return;
+
+            closed = true;
+            for (Cell cell : held.values())
+                release(cell, observer);
+            held.clear();
+        }
+
+        private String key(String prefix) {
+            return "pins/" + country + "/" + prefix;
+        }
+    }
+
+    private static double[] expand(double south, double west, double north, double east, double margin) {
+        double latMargin = (north - south) * margin;
+        double lonMargin = (east - west) * margin;
+        return new double[]{
+                Math.max(-90.0, south - latMargin),
+                Math.max(-180.0, west - lonMargin),
+                Math.min(90.0, north + latMargin),
+                Math.min(180.0, east + lonMargin)
+        };
+    }
+
+    private static boolean intersects(double[] a, double[] b) {
+        return a[0] <= b[2] && a[2] >= b[0] && a[1] <= b[3] && a[3] >= b[1];
+    }
+}
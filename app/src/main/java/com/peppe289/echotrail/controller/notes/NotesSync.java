@@ -0,0 +1,296 @@
+package com.peppe289.echotrail.controller.notes;
+
+import androidx.annotation.Nullable;
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.peppe289.echotrail.controller.callback.NotesCallback;
+import com.peppe289.echotrail.dao.notes.NotesCacheDAO;
+import com.peppe289.echotrail.dao.notes.NotesDAO;
+import com.peppe289.echotrail.model.NoteChange;
+import com.peppe289.echotrail.model.NoteDocument;
+import com.peppe289.echotrail.utils.FirestoreConstants;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delta sync of the pins of a geohash cell.
+ * <p>
+ * The first time a cell is shown every pin of the cell is downloaded, then the cache remembers the
+ * watermark of the cell: the server time of the newest pin seen
+ * (see {@link FirestoreConstants.Notes#FIELD_UPDATED_AT}). The next times the pins are served from
+ * the cache and only the ones written after the watermark are downloaded, so a user coming back
+ * to the same places pays only for what changed.
+ * </p>
+ * <p>
+ * A delta query can't see the pins deleted, so at most every {@link #RECONCILE_INTERVAL_MS} the
+ * cell is reconciled: the pins of the server are counted with an aggregation query and, only if
+ * the number differs from the cached one, the cell is downloaded again and the notes missing from
+ * the server are removed.
+ * </p>
+ * All the methods must be called from the main thread.
+ */
+class NotesSync {
+    /**
+     * Min time between two reconciliations of the same cell.
+     */
+    private static final long RECONCILE_INTERVAL_MS = TimeUnit.HOURS.toMillis(6);
+
+    private final NotesDAO notesDAO;
+    @Nullable
+    private final NotesCacheDAO notesCache;
+
+    NotesSync(NotesDAO notesDAO, @Nullable NotesCacheDAO notesCache) {
+        this.notesDAO = notesDAO;
+        this.notesCache = notesCache;
+    }
+
+    /**
+     * Starts the sync of a cell and keeps listening the new pins.
+     *
+     * @param listener invoked with the changes of the pins of the cell, the cached ones included
+     * @return the registration to remove when the cell is no longer shown
+     */
+    ListenerRegistration listenCell(String country, String prefix,
+                                    NotesCallback<List<NoteChange>, Exception> listener) {
+        CellSync sync = new CellSync(country, prefix, listener);
+        if (notesCache == null) {
+            sync.start(null);
+            return sync;
+        }
+
+        notesCache.getSyncState(country, prefix, new NotesCallback<NotesCacheDAO.SyncState, Exception>() {
+            @Override
+            public void onSuccess(@Nullable NotesCacheDAO.SyncState state) {
+                if (state == null) {
+                    sync.start(null);
+                    return;
+                }
+
+                notesCache.getInCell(country, prefix, new NotesCallback<List<NoteDocument>, Exception>() {
+                    @Override
+                    public void onSuccess(List<NoteDocument> notes) {
+                        if (sync.removed)
+                            return;
+
+                        List<NoteChange> changes = new ArrayList<>(notes.size());
+                        for (NoteDocument note : notes)
+                            changes.add(new NoteChange(NoteChange.Type.ADDED, note));
+                        if (!changes.isEmpty())
+                            listener.onSuccess(changes);
+                        sync.start(state);
+                    }
+
+                    @Override
+                    public void onError(Exception error) {
+                        sync.start(null);
+                    }
+                });
+            }
+
+            @Override
+            public void onError(Exception error) {
+                sync.start(null);
+            }
+        });
+        return sync;
+    }
+
+    /**
+     * The listener of a cell, attached once its sync state is read from the cache.
+     */
+    private class CellSync implements ListenerRegistration {
+        final String country;
+        final String prefix;
+        final NotesCallback<List<NoteChange>, Exception> listener;
+        @Nullable
+        ListenerRegistration registration;
+        /**
+         * Whether only the pins newer than the watermark are listened.
+         */
+        boolean delta;
+        boolean reconcile;
+        /**
+         * Whether a snapshot of the server was already received.
+         */
+        boolean synced;
+        boolean removed;
+
+        CellSync(String country, String prefix, NotesCallback<List<NoteChange>, Exception> listener) {
+            this.country = country;
+            this.prefix = prefix;
+            this.listener = listener;
+        }
+
+        void start(@Nullable NotesCacheDAO.SyncState state) {
+            if (removed)
+                return;
+
+            Timestamp updatedAfter = null;
+            if (state != null) {
+                delta = true;
+                updatedAfter = state.getWatermark();
+            }
+            // a full download is reconciled anyway, by its first server snapshot.
+            reconcile = state == null
+                    || System.currentTimeMillis() - state.getReconciledAt() >= RECONCILE_INTERVAL_MS;
+
+            registration = notesDAO.listenPinsInCell(country, prefix, updatedAfter,
+                    new NotesCallback<QuerySnapshot, Exception>() {
+                        @Override
+                        public void onSuccess(QuerySnapshot snapshot) {
+                            onSnapshot(snapshot);
+                        }
+
+                        @Override
+                        public void onError(Exception error) {
+                            if (!removed)
+                                listener.onError(error);
+                        }
+                    });
+        }
+
+        void onSnapshot(QuerySnapshot snapshot) {
+            if (removed)
+                return;
+
+            List<NoteChange> changes = NotesController.toChanges(snapshot, country, true);
+            if (!changes.isEmpty())
+                listener.onSuccess(changes);
+
+            // the listener receives the metadata changes too: the first snapshot of the server comes
+            // even when it has nothing new, after the one served by the persistence of Firestore.
+            if (notesCache == null || snapshot.getMetadata().isFromCache())
+                return;
+
+            boolean first = !synced;
+            synced = true;
+            if (first || !snapshot.getDocumentChanges().isEmpty())
+                notesCache.updateWatermark(country, prefix, newestUpdate(snapshot));
+            if (!reconcile)
+                return;
+
+            reconcile = false;
+            if (delta)
+                reconcileByCount();
+            else
+                removeMissing(snapshot);
+        }
+
+        /**
+         * Compares the number of pins of the server and of the cache, the cell is downloaded
+         * again only if they differ.
+         */
+        void reconcileByCount() {
+            notesDAO.countPinsInCell(country, prefix, new NotesCallback<Long, Exception>() {
+                @Override
+                public void onSuccess(Long serverCount) {
+                    if (removed || notesCache == null)
+                        return;
+
+                    notesCache.countInCell(country, prefix, new NotesCallback<Long, Exception>() {
+                        @Override
+                        public void onSuccess(Long cachedCount) {
+                            if (removed)
+                                return;
+
+                            if (cachedCount.equals(serverCount))
+                                notesCache.setReconciled(country, prefix);
+                            else
+                                downloadAgain();
+                        }
+
+                        @Override
+                        public void onError(Exception error) {
+                        }
+                    });
+                }
+
+                @Override
+                public void onError(Exception error) {
+                    // try again the next time the cell is shown.
+                }
+            });
+        }
+
+        void downloadAgain() {
+            notesDAO.getPinsInCell(country, prefix, new NotesCallback<QuerySnapshot, Exception>() {
+                @Override
+                public void onSuccess(QuerySnapshot snapshot) {
+                    if (removed || notesCache == null)
+                        return;
+
+                    List<NoteChange> changes = NotesController.toChanges(snapshot, country, true);
+                    if (!changes.isEmpty())
+                        listener.onSuccess(changes);
+                    notesCache.updateWatermark(country, prefix, newestUpdate(snapshot));
+                    removeMissing(snapshot);
+                }
+
+                @Override
+                public void onError(Exception error) {
+                }
+            });
+        }
+
+        /**
+         * Removes from the cache the notes of the cell that aren't in the full server snapshot
+         * (deleted while the app wasn't listening).
+         */
+        void removeMissing(QuerySnapshot snapshot) {
+            if (notesCache == null)
+                return;
+
+            Set<String> current = new HashSet<>();
+            for (DocumentSnapshot document : snapshot.getDocuments())
+                current.add(document.getId());
+
+            notesCache.getIdsInCell(country, prefix, new NotesCallback<Set<String>, Exception>() {
+                @Override
+                public void onSuccess(Set<String> cached) {
+                    cached.removeAll(current);
+                    notesCache.removeAll(cached);
+                    notesCache.setReconciled(country, prefix);
+                    if (cached.isEmpty() || removed)
+                        return;
+
+                    List<NoteChange> changes = new ArrayList<>(cached.size());
+                    for (String id : cached)
+                        changes.add(new NoteChange(NoteChange.Type.REMOVED, NoteDocument.ofId(id)));
+                    listener.onSuccess(changes);
+                }
+
+                @Override
+                public void onError(Exception error) {
+                }
+            });
+        }
+
+        @Override
+        public void remove() {
+            removed = true;
+            if (registration != null)
+                registration.remove();
+        }
+    }
+
+    /**
+     * @return the server time of the newest pin of the snapshot, {@code null} if there isn't any
+     */
+    @Nullable
+    private static Timestamp newestUpdate(QuerySnapshot snapshot) {
+        Timestamp newest = null;
+        for (DocumentSnapshot document : snapshot.getDocuments()) {
+            // null while the write of a pin of this device isn't committed yet.
+            Timestamp updatedAt = document.getTimestamp(FirestoreConstants.Notes.FIELD_UPDATED_AT);
+            if (updatedAt != null && (newest == null || updatedAt.compareTo(newest) > 0))
+                newest = updatedAt;
+        }
+        return newest;
+    }
+}
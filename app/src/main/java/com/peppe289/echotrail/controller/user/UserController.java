@@ -12,6 +12,7 @@ import com.peppe289.echotrail.controller.notes.NotesController;
 import com.peppe289.echotrail.dao.user.UserDAO;
 import com.peppe289.echotrail.exceptions.UserCollectionException;
 import com.peppe289.echotrail.exceptions.UserStateException;
+import com.peppe289.echotrail.model.NoteDocument;
 import com.peppe289.echotrail.model.Session;
 import com.peppe289.echotrail.model.User;
 import com.peppe289.echotrail.ui.activity.MainActivity;
@@ -115,7 +116,7 @@ public class UserController {
      *
      * @param callback trigger when the list is ready
      */
-    public static void getReadNotesList(ControllerCallback<QuerySnapshot, ErrorType> callback) {
+    public static void getReadNotesList(ControllerCallback<List<NoteDocument>, ErrorType> callback) {
         userDAO.genericUserListener(new UserCallback<Void, Exception>() {
             @Override
             public void onSuccess(Void result) {
@@ -198,20 +199,22 @@ public class UserController {
      */
     public static void logout(Context context) {
         if (isLoggedIn()) {
+            // whatever happens to the session, the next user must not see the notes of this one.
+            NotesController.unsubscribeAll();
+            NotesController.clearCache();
             UserController.removeSession(UniqueIDHelper.getUniqueID(context), new ControllerCallback<Void, ErrorType>() {
                 @Override
                 public void onSuccess(Void result) {
                     PreferencesController.clearUserHeaders();
                     PreferencesController.clearAnonymousPreferences();
-                    // go to login page.
-                    NavigationHelper.rebaseActivity(context, MainActivity.class, null);
-                    userDAO.signOut();
+                    // go to login page, once signed out.
+                    userDAO.signOut(() -> NavigationHelper.rebaseActivity(context, MainActivity.class, null));
                 }
 
                 @Override
                 public void onError(ErrorType error) {
                     // if we get some error, logout anyway
-                    userDAO.signOut();
+                    userDAO.signOut(null);
                 }
             });
         } else {
@@ -529,7 +532,7 @@ public class UserController {
      * @param callback A callback to handle the retrieved notes list.
      * @throws UserStateException if no user is logged in.
      */
-    public static void getUserNotesList(ControllerCallback<QuerySnapshot, ErrorType> callback) {
+    public static void getUserNotesList(ControllerCallback<List<NoteDocument>, ErrorType> callback) {
         if (isLoggedIn())
             userDAO.getUserInfo(getUid(), new UserCallback<User, Exception>() {
                 @Override
@@ -0,0 +1,409 @@
+package com.peppe289.echotrail.dao;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+import com.google.firebase.firestore.WriteBatch;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A write-behind queue for small updates of Firestore documents.
+ * <p>
+ * Instead of writing every update immediately, the updates are merged per document: the last
+ * value of a field wins, and {@code arrayUnion}/{@code arrayRemove} of the same array are
+ * accumulated. The pending updates are written all together in a single {@link WriteBatch}
+ * after {@link #FLUSH_DELAY_MS}, when the app goes in background or when {@link #flush()} is
+ * called. Like {@code DocumentReference.update}, the updates of a document that doesn't exist
+ * are rejected.
+ * </p>
+ * <p>
+ * A batch doesn't wait for the previous one to be committed (offline that takes until the
+ * network is back): Firestore applies the writes of the device in order. The updates of the
+ * batches not yet committed are merged together and persisted in the shared preferences with
+ * the pending ones, so they aren't lost if the process is killed: they are written at the next
+ * start. All the methods must be called from the main thread.
+ * </p>
+ */
+public class WriteBehindQueue {
+    private static final String TAG = "WriteBehindQueue";
+
+    /**
+     * How long an update waits for other updates before the batch is written.
+     */
+    private static final long FLUSH_DELAY_MS = 2000;
+
+    private static final String PREFERENCES_NAME = "write_behind_queue";
+    private static final String KEY_PENDING = "pending";
+    private static final String KEY_FIELDS = "fields";
+    private static final String KEY_UNION = "union";
+    private static final String KEY_REMOVE = "remove";
+
+    private static WriteBehindQueue instance;
+
+    private final SharedPreferences preferences;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable flushRunnable = this::flush;
+
+    /**
+     * Updates not yet sent, keyed by document path.
+     */
+    private final Map<String, PendingWrite> pending = new LinkedHashMap<>();
+    /**
+     * Updates of the batches being committed, merged and kept until they are all committed.
+     */
+    private final Map<String, PendingWrite> inFlight = new LinkedHashMap<>();
+    private int batchesInFlight;
+    /**
+     * Invoked when no update is pending nor in flight anymore, see {@link #flush(long, Runnable)}.
+     */
+    private final List<Runnable> flushWaiters = new ArrayList<>();
+
+    private WriteBehindQueue(Context context) {
+        this.preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        restore();
+
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= TRIM_MEMORY_UI_HIDDEN)
+                    flush();
+            }
+
+            @Override
+            public void onConfigurationChanged(@NonNull Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                flush();
+            }
+        });
+
+        // something left by the previous process.
+        if (!pending.isEmpty())
+            scheduleFlush();
+    }
+
+    public static synchronized void init(Context context) {
+        if (instance == null)
+            instance = new WriteBehindQueue(context.getApplicationContext());
+    }
+
+    /**
+     * @return the queue, {@code null} if {@link #init(Context)} wasn't called yet
+     */
+    @Nullable
+    public static WriteBehindQueue getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets a field of the document.
+     *
+     * @param value a String, Boolean or number
+     */
+    public void set(String documentPath, String field, Object value) {
+        get(documentPath).fields.put(field, value);
+        enqueued();
+    }
+
+    /**
+     * Adds the value to an array of the document, like {@link FieldValue#arrayUnion}.
+     */
+    public void arrayUnion(String documentPath, String field, String value) {
+        PendingWrite write = get(documentPath);
+        values(write.removals, field).remove(value);
+        values(write.unions, field).add(value);
+        enqueued();
+    }
+
+    /**
+     * Removes the value from an array of the document, like {@link FieldValue#arrayRemove}.
+     */
+    public void arrayRemove(String documentPath, String field, String value) {
+        PendingWrite write = get(documentPath);
+        values(write.unions, field).remove(value);
+        values(write.removals, field).add(value);
+        enqueued();
+    }
+
+    /**
+     * Writes now all the pending updates in a single batch.
+     */
+    public void flush() {
+        handler.removeCallbacks(flushRunnable);
+        if (pending.isEmpty()) {
+            if (batchesInFlight == 0)
+                notifyFlushed();
+            return;
+        }
+
+        FirebaseFirestore db = FirebaseFirestore.getInstance();
+        WriteBatch batch = db.batch();
+        for (Map.Entry<String, PendingWrite> entry : pending.entrySet()) {
+            PendingWrite write = entry.getValue();
+
+            Map<String, Object> data = new HashMap<>(write.fields);
+            for (Map.Entry<String, Set<String>> union : write.unions.entrySet()) {
+                if (!union.getValue().isEmpty())
+                    data.put(union.getKey(), FieldValue.arrayUnion(union.getValue().toArray()));
+            }
+            if (!data.isEmpty())
+                batch.update(db.document(entry.getKey()), data);
+
+            // a write can't have arrayUnion and arrayRemove on the same field, use another one.
+            Map<String, Object> removals = new HashMap<>();
+            for (Map.Entry<String, Set<String>> removal : write.removals.entrySet()) {
+                if (!removal.getValue().isEmpty())
+                    removals.put(removal.getKey(), FieldValue.arrayRemove(removal.getValue().toArray()));
+            }
+            if (!removals.isEmpty())
+                batch.update(db.document(entry.getKey()), removals);
+
+            PendingWrite older = inFlight.get(entry.getKey());
+            if (older != null)
+                older.merge(write);
+            else
+                inFlight.put(entry.getKey(), write);
+        }
+        pending.clear();
+        batchesInFlight++;
+
+        batch.commit()
+                .addOnSuccessListener(aVoid -> {
+                    // replaying the updates of a batch already committed is harmless, the last one clears them.
+                    if (--batchesInFlight == 0)
+                        inFlight.clear();
+                    persist();
+                    onBatchDone();
+                })
+                .addOnFailureListener(e -> {
+                    batchesInFlight--;
+                    if (!isRetryable(e)) {
+                        // the updates will never be accepted (like the ones of a user logged out).
+                        Log.e(TAG, "Pending updates rejected, dropping them", e);
+                        inFlight.clear();
+                        persist();
+                        onBatchDone();
+                        return;
+                    }
+
+                    Log.w(TAG, "Unable to write the pending updates, retrying later", e);
+                    // the updates enqueued in the meantime are newer than the failed ones.
+                    for (Map.Entry<String, PendingWrite> entry : pending.entrySet()) {
+                        PendingWrite older = inFlight.get(entry.getKey());
+                        if (older != null)
+                            older.merge(entry.getValue());
+                        else
+                            inFlight.put(entry.getKey(), entry.getValue());
+                    }
+                    pending.clear();
+                    pending.putAll(inFlight);
+                    inFlight.clear();
+                    scheduleFlush();
+                    if (batchesInFlight == 0)
+                        notifyFlushed();
+                });
+    }
+
+    /**
+     * Writes now all the pending updates and waits for every batch to be committed or rejected.
+     *
+     * @param timeoutMs max time to wait, offline a batch is committed only when the network is back
+     * @param done      invoked once on the main thread, when the updates are written or the time is over
+     */
+    public void flush(long timeoutMs, Runnable done) {
+        Runnable waiter = new Runnable() {
+            private boolean ran;
+
+            @Override
+            public void run() {
+                if (ran)
+                    return;
+                ran = true;
+                flushWaiters.remove(this);
+                handler.removeCallbacks(this);
+                done.run();
+            }
+        };
+        flushWaiters.add(waiter);
+        handler.postDelayed(waiter, timeoutMs);
+        flush();
+    }
+
+    private void onBatchDone() {
+        if (!pending.isEmpty())
+            scheduleFlush();
+        else if (batchesInFlight == 0)
+            notifyFlushed();
+    }
+
+    private void notifyFlushed() {
+        for (Runnable waiter : new ArrayList<>(flushWaiters))
+            waiter.run();
+    }
+
+    private static boolean isRetryable(Exception e) {
+        if (!(e instanceof FirebaseFirestoreException))
+            return true;
+
+        FirebaseFirestoreException.Code code = ((FirebaseFirestoreException) e).getCode();
+        return code != FirebaseFirestoreException.Code.PERMISSION_DENIED
+                && code != FirebaseFirestoreException.Code.INVALID_ARGUMENT
+                && code != FirebaseFirestoreException.Code.NOT_FOUND
+                && code != FirebaseFirestoreException.Code.UNAUTHENTICATED;
+    }
+
+    private PendingWrite get(String documentPath) {
+        PendingWrite write = pending.get(documentPath);
+        if (write == null) {
+            write = new PendingWrite();
+            pending.put(documentPath, write);
+        }
+        return write;
+    }
+
+    private static Set<String> values(Map<String, Set<String>> arrays, String field) {
+        Set<String> values = arrays.get(field);
+        if (values == null) {
+            values = new LinkedHashSet<>();
+            arrays.put(field, values);
+        }
+        return values;
+    }
+
+    private void enqueued() {
+        persist();
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        handler.removeCallbacks(flushRunnable);
+        handler.postDelayed(flushRunnable, FLUSH_DELAY_MS);
+    }
+
+    /**
+     * Saves the updates not yet committed (in flight and pending).
+     */
+    private void persist() {
+        try {
+            JSONObject documents = new JSONObject();
+            for (Map.Entry<String, PendingWrite> entry : inFlight.entrySet())
+                documents.put(entry.getKey(), entry.getValue().toJson());
+            for (Map.Entry<String, PendingWrite> entry : pending.entrySet()) {
+                PendingWrite write = entry.getValue();
+                PendingWrite older = inFlight.get(entry.getKey());
+                if (older != null) {
+                    write = PendingWrite.fromJson(older.toJson());
+                    write.merge(entry.getValue());
+                }
+                documents.put(entry.getKey(), write.toJson());
+            }
+            preferences.edit().putString(KEY_PENDING, documents.toString()).apply();
+        } catch (JSONException e) {
+            Log.e(TAG, "Unable to persist the pending updates", e);
+        }
+    }
+
+    private void restore() {
+        String json = preferences.getString(KEY_PENDING, null);
+        if (json == null)
+            return;
+
+        try {
+            JSONObject documents = new JSONObject(json);
+            Iterator<String> paths = documents.keys();
+            while (paths.hasNext()) {
+                String path = paths.next();
+                pending.put(path, PendingWrite.fromJson(documents.getJSONObject(path)));
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Unable to restore the pending updates", e);
+            pending.clear();
+        }
+    }
+
+    /**
+     * The merged updates of a single document.
+     */
+    private static class PendingWrite {
+        final Map<String, Object> fields = new LinkedHashMap<>();
+        final Map<String, Set<String>> unions = new LinkedHashMap<>();
+        final Map<String, Set<String>> removals = new LinkedHashMap<>();
+
+        /**
+         * Applies the updates of {@code newer} over these ones.
+         */
+        void merge(PendingWrite newer) {
+            fields.putAll(newer.fields);
+            for (Map.Entry<String, Set<String>> entry : newer.unions.entrySet()) {
+                values(removals, entry.getKey()).removeAll(entry.getValue());
+                values(unions, entry.getKey()).addAll(entry.getValue());
+            }
+            for (Map.Entry<String, Set<String>> entry : newer.removals.entrySet()) {
+                values(unions, entry.getKey()).removeAll(entry.getValue());
+                values(removals, entry.getKey()).addAll(entry.getValue());
+            }
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put(KEY_FIELDS, new JSONObject(fields));
+            json.put(KEY_UNION, arraysToJson(unions));
+            json.put(KEY_REMOVE, arraysToJson(removals));
+            return json;
+        }
+
+        static PendingWrite fromJson(JSONObject json) throws JSONException {
+            PendingWrite write = new PendingWrite();
+            JSONObject fields = json.getJSONObject(KEY_FIELDS);
+            Iterator<String> keys = fields.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                write.fields.put(key, fields.get(key));
+            }
+            arraysFromJson(json.getJSONObject(KEY_UNION), write.unions);
+            arraysFromJson(json.getJSONObject(KEY_REMOVE), write.removals);
+            return write;
+        }
+
+        private static JSONObject arraysToJson(Map<String, Set<String>> arrays) throws JSONException {
+            JSONObject json = new JSONObject();
+            for (Map.Entry<String, Set<String>> entry : arrays.entrySet())
+                json.put(entry.getKey(), new JSONArray(new ArrayList<>(entry.getValue())));
+            return json;
+        }
+
+        private static void arraysFromJson(JSONObject json, Map<String, Set<String>> arrays) throws JSONException {
+            Iterator<String> keys = json.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                JSONArray values = json.getJSONArray(key);
+                for (int i = 0; i < values.length(); i++)
+                    values(arrays, key).add(values.getString(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.peppe289.echotrail.dao.notes;
+
+import com.google.firebase.firestore.DocumentSnapshot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of a fetch of notes by ID split in several {@code whereIn} chunks
+ * (see {@link NotesDAO#getNotes(List, com.peppe289.echotrail.controller.callback.NotesCallback)}).
+ * <p>
+ * The documents are ordered as the requested IDs. Chunks whose query failed are reported
+ * separately so the caller can show what was loaded and retry only the missing part.
+ * </p>
+ */
+public class NotesBatchResult {
+    private final List<DocumentSnapshot> documents;
+    private final List<List<String>> failedChunks;
+
+    public NotesBatchResult(List<DocumentSnapshot> documents, List<List<String>> failedChunks) {
+        this.documents = documents;
+        this.failedChunks = failedChunks;
+    }
+
+    public static NotesBatchResult empty() {
+        return new NotesBatchResult(Collections.emptyList(), Collections.emptyList());
+    }
+
+    /**
+     * @return the documents found, in the same order of the requested IDs
+     */
+    public List<DocumentSnapshot> getDocuments() {
+        return documents;
+    }
+
+    /**
+     * @return the IDs of each chunk whose query failed
+     */
+    public List<List<String>> getFailedChunks() {
+        return failedChunks;
+    }
+
+    /**
+     * @return all IDs that couldn't be fetched
+     */
+    public List<String> getFailedIds() {
+        List<String> ids = new ArrayList<>();
+        for (List<String> chunk : failedChunks)
+            ids.addAll(chunk);
+        return ids;
+    }
+
+    public boolean hasFailures() {
+        return !failedChunks.isEmpty();
+    }
+}
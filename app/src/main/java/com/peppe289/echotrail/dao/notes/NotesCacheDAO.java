@@ -0,0 +1,544 @@
+package com.peppe289.echotrail.dao.notes;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.google.firebase.Timestamp;
+import com.peppe289.echotrail.controller.callback.NotesCallback;
+import com.peppe289.echotrail.model.NoteDocument;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Data Access Object (DAO) class for the on-device copy of the notes, stored in SQLite.
+ * <p>
+ * Every note downloaded from Firestore is written here with the time it was fetched, so the
+ * next reads can be served instantly (and offline) while the network copy is revalidated
+ * in background (see {@link com.peppe289.echotrail.controller.notes.NotesController}).
+ * </p>
+ * <p>
+ * All the operations run on a single background thread, in the same order they are requested.
+ * The results are delivered on the main thread.
+ * Old entries are evicted by age and, past {@link #MAX_ENTRIES}, the least recently used first:
+ * at the start and every {@link #EVICTION_INTERVAL} notes written.
+ * </p>
+ * <p>
+ * For the delta sync of the map the cache also keeps, for every geohash cell of the pins, the
+ * watermark of the cell (the server time of the newest pin downloaded) and the last time the cell
+ * was reconciled with the server (see {@link SyncState}).
+ * </p>
+ */
+public class NotesCacheDAO {
+    private static final String TAG = "NotesCacheDAO";
+
+    /**
+     * Entries fetched within this time are served without revalidation.
+     */
+    public static final long FRESH_MS = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * Entries not read nor downloaded again for this time are evicted.
+     */
+    private static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(30);
+
+    /**
+     * Max number of notes kept on the device.
+     */
+    private static final int MAX_ENTRIES = 5000;
+
+    /**
+     * Number of notes written between two evictions.
+     */
+    private static final int EVICTION_INTERVAL = 500;
+
+    /**
+     * Max number of arguments bound to a single {@code IN (...)} clause.
+     */
+    private static final int MAX_QUERY_ARGS = 500;
+
+    private static final String TABLE_NOTES = "notes";
+    private static final String TABLE_SYNC = "sync_state";
+    private static final String COLUMNS = "id, user_id, username, content, city, send_to, "
+            + "has_coordinates, latitude, longitude, geohash, timestamp, fetched_at";
+
+    private static NotesCacheDAO instance;
+
+    private final Helper helper;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    /**
+     * Notes written since the last eviction, used only by {@link #executor}.
+     */
+    private int writtenSinceEviction;
+
+    private NotesCacheDAO(Context context) {
+        this.helper = new Helper(context.getApplicationContext());
+        evict();
+    }
+
+    public static synchronized NotesCacheDAO getInstance(Context context) {
+        if (instance == null) {
+            instance = new NotesCacheDAO(context);
+        }
+        return instance;
+    }
+
+    /**
+     * A note of the cache with the time it was downloaded.
+     */
+    public static class Entry {
+        private final NoteDocument note;
+        private final long fetchedAt;
+
+        Entry(NoteDocument note, long fetchedAt) {
+            this.note = note;
+            this.fetchedAt = fetchedAt;
+        }
+
+        public NoteDocument getNote() {
+            return note;
+        }
+
+        /**
+         * @return {@code true} if the entry doesn't need to be revalidated
+         */
+        public boolean isFresh() {
+            return System.currentTimeMillis() - fetchedAt < FRESH_MS;
+        }
+    }
+
+    /**
+     * The sync state of a geohash cell of the pins.
+     */
+    public static class SyncState {
+        private final Timestamp watermark;
+        private final long reconciledAt;
+
+        SyncState(Timestamp watermark, long reconciledAt) {
+            this.watermark = watermark;
+            this.reconciledAt = reconciledAt;
+        }
+
+        /**
+         * @return the server time of the newest pin of the cell downloaded, at full precision:
+         * a watermark cut to milliseconds would match that pin again. The epoch if none was seen.
+         */
+        public Timestamp getWatermark() {
+            return watermark;
+        }
+
+        /**
+         * @return when the cached pins of the cell were last checked against the server, in milliseconds
+         */
+        public long getReconciledAt() {
+            return reconciledAt;
+        }
+    }
+
+    /**
+     * Retrieves the cached notes with the given IDs. Notes known only by their position
+     * (without content) are not returned.
+     *
+     * @param callback invoked with the entries found, keyed by note ID
+     */
+    public void get(List<String> ids, NotesCallback<Map<String, Entry>, Exception> callback) {
+        List<String> distinct = new ArrayList<>(new HashSet<>(ids));
+        run(callback, db -> {
+            Map<String, Entry> entries = new HashMap<>();
+            for (int i = 0; i < distinct.size(); i += MAX_QUERY_ARGS) {
+                List<String> chunk = distinct.subList(i, Math.min(i + MAX_QUERY_ARGS, distinct.size()));
+                try (Cursor cursor = db.rawQuery("SELECT " + COLUMNS + " FROM " + TABLE_NOTES
+                                + " WHERE content IS NOT NULL AND id IN (" + placeholders(chunk.size()) + ")",
+                        chunk.toArray(new String[0]))) {
+                    while (cursor.moveToNext()) {
+                        Entry entry = readEntry(cursor);
+                        entries.put(entry.note.getId(), entry);
+                    }
+                }
+            }
+            touch(db, entries.keySet());
+            return entries;
+        });
+    }
+
+    /**
+     * Retrieves the cached pins of a country falling in the given bounding box.
+     */
+    public void getInArea(String country, double south, double west, double north, double east,
+                          NotesCallback<List<NoteDocument>, Exception> callback) {
+        run(callback, db -> {
+            String lonFilter = west <= east
+                    ? "longitude BETWEEN ? AND ?"
+                    : "(longitude >= ? OR longitude <= ?)";
+            List<NoteDocument> notes = new ArrayList<>();
+            try (Cursor cursor = db.rawQuery("SELECT " + COLUMNS + " FROM " + TABLE_NOTES
+                            + " WHERE country = ? AND is_pin = 1 AND has_coordinates = 1"
+                            + " AND latitude BETWEEN ? AND ? AND " + lonFilter,
+                    new String[]{country, String.valueOf(south), String.valueOf(north),
+                            String.valueOf(west), String.valueOf(east)})) {
+                while (cursor.moveToNext())
+                    notes.add(readEntry(cursor).note);
+            }
+            List<String> ids = new ArrayList<>();
+            for (NoteDocument note : notes)
+                ids.add(note.getId());
+            touch(db, ids);
+            return notes;
+        });
+    }
+
+    /**
+     * Retrieves the cached pins of a country whose geohash starts with the given prefix.
+     */
+    public void getInCell(String country, String prefix, NotesCallback<List<NoteDocument>, Exception> callback) {
+        run(callback, db -> {
+            List<NoteDocument> notes = new ArrayList<>();
+            try (Cursor cursor = db.rawQuery("SELECT " + COLUMNS + " FROM " + TABLE_NOTES
+                            + " WHERE country = ? AND is_pin = 1 AND geohash GLOB ?",
+                    new String[]{country, prefix + "*"})) {
+                while (cursor.moveToNext())
+                    notes.add(readEntry(cursor).note);
+            }
+            List<String> ids = new ArrayList<>(notes.size());
+            for (NoteDocument note : notes)
+                ids.add(note.getId());
+            touch(db, ids);
+            return notes;
+        });
+    }
+
+    /**
+     * Retrieves the IDs of the cached pins of a country whose geohash starts with the given prefix.
+     */
+    public void getIdsInCell(String country, String prefix, NotesCallback<Set<String>, Exception> callback) {
+        run(callback, db -> {
+            Set<String> ids = new HashSet<>();
+            try (Cursor cursor = db.rawQuery("SELECT id FROM " + TABLE_NOTES
+                            + " WHERE country = ? AND is_pin = 1 AND geohash GLOB ?",
+                    new String[]{country, prefix + "*"})) {
+                while (cursor.moveToNext())
+                    ids.add(cursor.getString(0));
+            }
+            return ids;
+        });
+    }
+
+    /**
+     * Counts the cached pins of a country whose geohash starts with the given prefix.
+     * <p>
+     * Only the rows downloaded by a query of the pins are counted: a note with a position cached by
+     * another query (like the pages of the user) may have no pin, and the count of the server would
+     * never match.
+     * </p>
+     */
+    public void countInCell(String country, String prefix, NotesCallback<Long, Exception> callback) {
+        run(callback, db -> DatabaseUtils.queryNumEntries(db, TABLE_NOTES,
+                "country = ? AND is_pin = 1 AND geohash GLOB ?", new String[]{country, prefix + "*"}));
+    }
+
+    /**
+     * Retrieves the sync state of a geohash cell.
+     *
+     * @param callback invoked with the state, {@code null} if the cell was never downloaded
+     *                 (or its notes were evicted)
+     */
+    public void getSyncState(String country, String prefix, NotesCallback<SyncState, Exception> callback) {
+        run(callback, db -> {
+            try (Cursor cursor = db.rawQuery("SELECT watermark_nanos, reconciled_at FROM " + TABLE_SYNC
+                    + " WHERE country = ? AND prefix = ?", new String[]{country, prefix})) {
+                return cursor.moveToFirst() ? new SyncState(fromNanos(cursor.getLong(0)), cursor.getLong(1)) : null;
+            }
+        });
+    }
+
+    /**
+     * Moves forward the watermark of a geohash cell, a lower value is ignored.
+     *
+     * @param watermark the server time of the newest pin downloaded, {@code null} if the cell has
+     *                  none: the cell is recorded as downloaded anyway
+     */
+    public void updateWatermark(String country, String prefix, @Nullable Timestamp watermark) {
+        long nanos = watermark != null ? toNanos(watermark) : 0;
+        executor.execute(() -> helper.getWritableDatabase().execSQL("INSERT INTO " + TABLE_SYNC
+                        + " (country, prefix, watermark_nanos, reconciled_at) VALUES (?, ?, ?, 0)"
+                        + " ON CONFLICT(country, prefix) DO UPDATE SET watermark_nanos = MAX(watermark_nanos, excluded.watermark_nanos)",
+                new Object[]{country, prefix, nanos}));
+    }
+
+    /**
+     * Records that the cached pins of a geohash cell match the server now.
+     */
+    public void setReconciled(String country, String prefix) {
+        executor.execute(() -> helper.getWritableDatabase().execSQL("UPDATE " + TABLE_SYNC
+                        + " SET reconciled_at = ? WHERE country = ? AND prefix = ?",
+                new Object[]{System.currentTimeMillis(), country, prefix}));
+    }
+
+    /**
+     * Inserts or updates the given notes, marking them as just fetched.
+     * <p>
+     * A pin (a note without content) doesn't erase the body of a note already cached, nor
+     * makes it fresh again.
+     * </p>
+     *
+     * @param country the country collection the notes come from, {@code null} if unknown.
+     *                A known country is never overwritten with {@code null}.
+     */
+    public void putAll(@Nullable String country, Collection<NoteDocument> notes) {
+        putAll(country, notes, false);
+    }
+
+    /**
+     * Inserts or updates the given notes, marking them as just fetched.
+     *
+     * @param pins whether the notes come from a query of the pins of a cell: only those are
+     *             counted and reconciled by {@link #countInCell} and {@link #getIdsInCell}.
+     *             A note is never unmarked as a pin.
+     */
+    public void putAll(@Nullable String country, Collection<NoteDocument> notes, boolean pins) {
+        if (notes.isEmpty())
+            return;
+
+        List<NoteDocument> copy = new ArrayList<>(notes);
+        executor.execute(() -> {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            long now = System.currentTimeMillis();
+            db.beginTransaction();
+            try (SQLiteStatement statement = db.compileStatement("INSERT INTO " + TABLE_NOTES
+                    + " (country, " + COLUMNS + ", accessed_at, is_pin) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
+                    + " ON CONFLICT(id) DO UPDATE SET"
+                    + " country = COALESCE(excluded.country, country), user_id = excluded.user_id,"
+                    + " username = COALESCE(excluded.username, username),"
+                    + " content = COALESCE(excluded.content, content),"
+                    + " city = COALESCE(excluded.city, city), send_to = excluded.send_to, has_coordinates = excluded.has_coordinates,"
+                    + " latitude = excluded.latitude, longitude = excluded.longitude,"
+                    + " geohash = excluded.geohash, timestamp = excluded.timestamp,"
+                    + " fetched_at = CASE WHEN excluded.content IS NULL AND content IS NOT NULL"
+                    + " THEN fetched_at ELSE excluded.fetched_at END,"
+                    + " accessed_at = excluded.accessed_at, is_pin = MAX(is_pin, excluded.is_pin)")) {
+                for (NoteDocument note : copy) {
+                    statement.clearBindings();
+                    bind(statement, 1, country);
+                    bind(statement, 2, note.getId());
+                    bind(statement, 3, note.getUserId());
+                    bind(statement, 4, note.getUsername());
+                    bind(statement, 5, note.getContent());
+                    bind(statement, 6, note.getCity());
+                    bind(statement, 7, note.getSendTo());
+                    statement.bindLong(8, note.hasCoordinates() ? 1 : 0);
+                    statement.bindDouble(9, note.getLatitude());
+                    statement.bindDouble(10, note.getLongitude());
+                    bind(statement, 11, note.getGeohash());
+                    statement.bindLong(12, note.getTimestamp());
+                    statement.bindLong(13, now);
+                    statement.bindLong(14, now);
+                    statement.bindLong(15, pins ? 1 : 0);
+                    statement.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Unable to cache notes", e);
+            } finally {
+                db.endTransaction();
+            }
+
+            writtenSinceEviction += copy.size();
+            if (writtenSinceEviction >= EVICTION_INTERVAL)
+                evictNow(db);
+        });
+    }
+
+    /**
+     * Removes the notes with the given IDs, used when they are deleted from the backend.
+     */
+    public void removeAll(Collection<String> ids) {
+        if (ids.isEmpty())
+            return;
+
+        List<String> copy = new ArrayList<>(ids);
+        executor.execute(() -> {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            for (int i = 0; i < copy.size(); i += MAX_QUERY_ARGS) {
+                List<String> chunk = copy.subList(i, Math.min(i + MAX_QUERY_ARGS, copy.size()));
+                db.delete(TABLE_NOTES, "id IN (" + placeholders(chunk.size()) + ")", chunk.toArray(new String[0]));
+            }
+        });
+    }
+
+    /**
+     * Evicts the entries not used for {@link #MAX_AGE_MS} and, past {@link #MAX_ENTRIES},
+     * the least recently used ones. Only the sync states of the cells that lose a pin are reset.
+     */
+    public void evict() {
+        executor.execute(() -> evictNow(helper.getWritableDatabase()));
+    }
+
+    private void evictNow(SQLiteDatabase db) {
+        writtenSinceEviction = 0;
+        long oldest = System.currentTimeMillis() - MAX_AGE_MS;
+        db.beginTransaction();
+        try {
+            // the watermarks of the cells losing a pin no longer cover it: download them again.
+            db.execSQL("DELETE FROM " + TABLE_SYNC + " WHERE EXISTS (SELECT 1 FROM " + TABLE_NOTES + " n"
+                    + " WHERE n.is_pin = 1 AND n.country = " + TABLE_SYNC + ".country"
+                    + " AND n.geohash GLOB " + TABLE_SYNC + ".prefix || '*' AND " + evictedFilter("n", oldest) + ")");
+            db.delete(TABLE_NOTES, evictedFilter(TABLE_NOTES, oldest), null);
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unable to evict the notes cache", e);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return the condition on the notes table, with the given alias, matching the notes to evict
+     */
+    private static String evictedFilter(String alias, long oldest) {
+        return "(" + alias + ".accessed_at < " + oldest + " OR " + alias + ".id NOT IN (SELECT id FROM " + TABLE_NOTES
+                + " ORDER BY accessed_at DESC LIMIT " + MAX_ENTRIES + "))";
+    }
+
+    /**
+     * Removes every note and sync state, used on logout.
+     */
+    public void clear() {
+        executor.execute(() -> {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            db.delete(TABLE_NOTES, null, null);
+            db.delete(TABLE_SYNC, null, null);
+        });
+    }
+
+    private interface Operation<R> {
+        R run(SQLiteDatabase db);
+    }
+
+    private <R> void run(NotesCallback<R, Exception> callback, Operation<R> operation) {
+        executor.execute(() -> {
+            try {
+                R result = operation.run(helper.getWritableDatabase());
+                mainHandler.post(() -> callback.onSuccess(result));
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Unable to read the notes cache", e);
+                mainHandler.post(() -> callback.onError(e));
+            }
+        });
+    }
+
+    private static void touch(SQLiteDatabase db, Collection<String> ids) {
+        List<String> list = new ArrayList<>(ids);
+        String now = String.valueOf(System.currentTimeMillis());
+        for (int i = 0; i < list.size(); i += MAX_QUERY_ARGS) {
+            List<String> chunk = list.subList(i, Math.min(i + MAX_QUERY_ARGS, list.size()));
+            List<String> args = new ArrayList<>(chunk.size() + 1);
+            args.add(now);
+            args.addAll(chunk);
+            db.execSQL("UPDATE " + TABLE_NOTES + " SET accessed_at = ? WHERE id IN ("
+                    + placeholders(chunk.size()) + ")", args.toArray());
+        }
+    }
+
+    private static Entry readEntry(Cursor cursor) {
+        NoteDocument note = new NoteDocument(
+                cursor.getString(0),
+                cursor.getString(1),
+                cursor.getString(2),
+                cursor.getString(3),
+                cursor.getString(4),
+                cursor.getString(5),
+                cursor.getInt(6) == 1,
+                cursor.getDouble(7),
+                cursor.getDouble(8),
+                cursor.getString(9),
+                cursor.getLong(10));
+        return new Entry(note, cursor.getLong(11));
+    }
+
+    /**
+     * @return the nanoseconds since the epoch, enough for the server times until 2262
+     */
+    private static long toNanos(Timestamp timestamp) {
+        return timestamp.getSeconds() * 1_000_000_000L + timestamp.getNanoseconds();
+    }
+
+    private static Timestamp fromNanos(long nanos) {
+        return new Timestamp(nanos / 1_000_000_000L, (int) (nanos % 1_000_000_000L));
+    }
+
+    private static void bind(SQLiteStatement statement, int index, @Nullable String value) {
+        if (value == null)
+            statement.bindNull(index);
+        else
+            statement.bindString(index, value);
+    }
+
+    private static String placeholders(int count) {
+        return String.join(",", Collections.nCopies(count, "?"));
+    }
+
+    private static class Helper extends SQLiteOpenHelper {
+        private static final String DATABASE_NAME = "notes_cache.db";
+        private static final int DATABASE_VERSION = 4;
+
+        Helper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_NOTES + " ("
+                    + "id TEXT PRIMARY KEY, "
+                    + "country TEXT, "
+                    + "user_id TEXT, "
+                    + "username TEXT, "
+                    + "content TEXT, "
+                    + "city TEXT, "
+                    + "send_to TEXT, "
+                    + "has_coordinates INTEGER NOT NULL DEFAULT 0, "
+                    + "latitude REAL NOT NULL DEFAULT 0, "
+                    + "longitude REAL NOT NULL DEFAULT 0, "
+                    + "geohash TEXT, "
+                    + "timestamp INTEGER NOT NULL DEFAULT 0, "
+                    + "fetched_at INTEGER NOT NULL, "
+                    + "accessed_at INTEGER NOT NULL, "
+                    + "is_pin INTEGER NOT NULL DEFAULT 0)");
+            db.execSQL("CREATE INDEX notes_country_geohash ON " + TABLE_NOTES + " (country, geohash)");
+            db.execSQL("CREATE INDEX notes_country_position ON " + TABLE_NOTES + " (country, latitude, longitude)");
+            db.execSQL("CREATE INDEX notes_accessed_at ON " + TABLE_NOTES + " (accessed_at)");
+            db.execSQL("CREATE TABLE " + TABLE_SYNC + " ("
+                    + "country TEXT NOT NULL, "
+                    + "prefix TEXT NOT NULL, "
+                    + "watermark_nanos INTEGER NOT NULL, "
+                    + "reconciled_at INTEGER NOT NULL, "
+                    + "PRIMARY KEY (country, prefix))");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // it's only a cache, start again from an empty table.
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_NOTES);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_SYNC);
+            onCreate(db);
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.peppe289.echotrail.dao.notes;
 
 import androidx.annotation.Nullable;
+import com.google.firebase.Timestamp;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.firestore.*;
 import com.peppe289.echotrail.annotations.TestOnly;
 import com.peppe289.echotrail.controller.callback.NotesCallback;
@@ -8,9 +11,15 @@ import com.peppe289.echotrail.controller.user.UserController;
 import com.peppe289.echotrail.dao.user.UserDAO;
 import com.peppe289.echotrail.exceptions.NoteCollectionException;
 import com.peppe289.echotrail.controller.callback.ControllerCallback;
+import com.peppe289.echotrail.model.NoteDocument;
 import com.peppe289.echotrail.utils.FirestoreConstants;
+import com.peppe289.echotrail.utils.GeoHash;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -25,7 +34,8 @@ import java.util.Map;
  * <ul>
  *     <li>Saves new notes to the Firestore database.</li>
  *     <li>Fetches specific notes by their unique IDs.</li>
- *     <li>Retrieves all notes stored in the database.</li>
+ *     <li>Retrieves only the pins of the notes of an area using geohash range queries.</li>
+ *     <li>Retrieves only the pins written after a watermark, for the delta sync of an area.</li>
  *     <li>Utilizes Firebase Authentication to associate notes with authenticated users.</li>
  * </ul>
  * </p>
@@ -37,6 +47,16 @@ public class NotesDAO {
     private final FirebaseFirestore db;
     private static NotesDAO instance;
 
+    /**
+     * Last code point usable in a Firestore string, used as upper bound of the prefix range queries.
+     */
+    private static final String GEOHASH_RANGE_END = "\uf8ff";
+
+    /**
+     * Max number of values accepted by Firestore in a {@code whereIn} filter.
+     */
+    private static final int WHERE_IN_LIMIT = 30;
+
     @TestOnly
     private NotesDAO(FirebaseFirestore db) {
         this.db = db;
@@ -54,104 +74,306 @@ public class NotesDAO {
     }
 
     /**
-     * Saves a new note to the Firestore database.
+     * Generates the ID of a new note on the device, without any network round-trip.
+     */
+    public String newNoteId() {
+        return db.collection(FirestoreConstants.COLLECTION_NOTES)
+                .document(FirestoreConstants.Notes.DOCUMENT_ALL)
+                .collection(FirestoreConstants.Notes.COLLECTION_DATA)
+                .document()
+                .getId();
+    }
+
+    /**
+     * Saves a note to the Firestore database.
      * <p>
-     * Upon successful saving, this method triggers a callback and updates the user's list of notes
-     * through the {@link UserDAO}.
+     * The note is written in the global and in the country collection, its pin is written for the
+     * map and its ID is added to the notes of the author, all in the same {@link WriteBatch}.
+     * The pin goes in the public pins of the country (see {@link FirestoreConstants.Notes#COLLECTION_PINS})
+     * or, for a dedicated note, only in the inbox of the recipient
+     * (see {@link FirestoreConstants.Users#COLLECTION_INBOX}). Since the ID is assigned by the
+     * caller (see {@link #newNoteId()}), saving the same note again overwrites the same documents:
+     * retries are idempotent.
      * </p>
      *
-     * @param noteData a {@link Map} containing the note's data (e.g., title, content, metadata)
-     * @param callback a callback instance to notify when the save operation is complete
+     * @param note     the note to save
+     * @param country  the country collection of the note
+     * @param callback a callback instance to notify when the save operation is complete, the error
+     *                 is the one reported by Firestore
      */
-    public void saveNote(Map<String, Object> noteData, String country, NotesCallback<String, Exception> callback) {
-        if (!UserController.isLoggedIn())
+    public void saveNote(NoteDocument note, String country, NotesCallback<String, Exception> callback) {
+        if (!UserController.isLoggedIn()) {
+            callback.onError(new NoteCollectionException("User is not signed in."));
             return;
+        }
+
+        Map<String, Object> noteData = new HashMap<>();
+        noteData.put(FirestoreConstants.Notes.FIELD_USER_ID, note.getUserId());
+        noteData.put(FirestoreConstants.Notes.FIELD_CONTENT, note.getContent());
+        noteData.put(FirestoreConstants.Notes.FIELD_CITY, note.getCity());
+        noteData.put(FirestoreConstants.Notes.FIELD_TIMESTAMP, new Timestamp(new Date(note.getTimestamp())));
+        if (note.getUsername() != null)
+            noteData.put(FirestoreConstants.Notes.FIELD_USERNAME, note.getUsername());
+        if (note.getSendTo() != null)
+            noteData.put(FirestoreConstants.Notes.FIELD_SEND_TO, note.getSendTo());
+        if (note.hasCoordinates()) {
+            noteData.put(FirestoreConstants.Notes.FIELD_COORDINATES, new GeoPoint(note.getLatitude(), note.getLongitude()));
+            noteData.put(FirestoreConstants.Notes.FIELD_GEOHASH, note.getGeohash());
+        }
 
         WriteBatch batch = db.batch();
 
         DocumentReference noteRef = db.collection(FirestoreConstants.COLLECTION_NOTES)
-                .document("notes")
-                .collection("data")
-                .document();
+                .document(FirestoreConstants.Notes.DOCUMENT_ALL)
+                .collection(FirestoreConstants.Notes.COLLECTION_DATA)
+                .document(note.getId());
 
         DocumentReference redundantNoteRef = db.collection(FirestoreConstants.COLLECTION_NOTES)
                 .document(country)
-                .collection("data")
-                .document(noteRef.getId());
+                .collection(FirestoreConstants.Notes.COLLECTION_DATA)
+                .document(note.getId());
+
+        DocumentReference userRef = db.collection(FirestoreConstants.COLLECTION_USERS)
+                .document(note.getUserId());
+
+        DocumentReference pinRef = db.collection(FirestoreConstants.COLLECTION_NOTES)
+                .document(country)
+                .collection(FirestoreConstants.Notes.COLLECTION_PINS)
+                .document(note.getId());
 
         batch.set(noteRef, noteData);
         batch.set(redundantNoteRef, noteData);
+        if (note.getSendTo() != null) {
+            // dedicated notes are visible only to the recipient, not in the public pins.
+            DocumentReference inboxRef = db.collection(FirestoreConstants.COLLECTION_USERS)
+                    .document(note.getSendTo())
+                    .collection(FirestoreConstants.Users.COLLECTION_INBOX)
+                    .document(note.getId());
+            batch.set(inboxRef, pinData(noteData));
+        } else if (note.hasCoordinates()) {
+            batch.set(pinRef, pinData(noteData));
+        }
+        batch.set(userRef, Collections.singletonMap(FirestoreConstants.Users.FIELD_PUBLISHED_NOTES,
+                FieldValue.arrayUnion(note.getId())), SetOptions.merge());
 
         batch.commit()
-                .addOnSuccessListener(aVoid -> {
-                    callback.onSuccess(noteRef.getId());
-                })
-                .addOnFailureListener(e -> {
-                    callback.onError(new NoteCollectionException());
-                });
+                .addOnSuccessListener(aVoid -> callback.onSuccess(note.getId()))
+                .addOnFailureListener(callback::onError);
+    }
+
+    /**
+     * Extracts from the data of a note the fields of its pin, stamped with the server time
+     * (see {@link FirestoreConstants.Notes#FIELD_UPDATED_AT}).
+     */
+    private static Map<String, Object> pinData(Map<String, Object> noteData) {
+        Map<String, Object> pin = new HashMap<>();
+        for (String field : new String[]{FirestoreConstants.Notes.FIELD_USER_ID,
+                FirestoreConstants.Notes.FIELD_COORDINATES, FirestoreConstants.Notes.FIELD_GEOHASH,
+                FirestoreConstants.Notes.FIELD_SEND_TO, FirestoreConstants.Notes.FIELD_TIMESTAMP}) {
+            if (noteData.containsKey(field))
+                pin.put(field, noteData.get(field));
+        }
+        pin.put(FirestoreConstants.Notes.FIELD_UPDATED_AT, FieldValue.serverTimestamp());
+        return pin;
     }
 
     /**
      * Retrieves a list of notes from the Firestore database by their unique IDs.
      * <p>
-     * This method queries the "notes" collection using the provided list of note IDs and triggers
-     * the provided callback for each note retrieved successfully.
+     * Firestore limits the number of values of a {@code whereIn} filter, so the IDs are split in
+     * chunks of {@link #WHERE_IN_LIMIT} and a query per chunk is fired in parallel. The results
+     * are merged following the order of {@code notesID}. If only some chunks fail, the notes found
+     * are delivered anyway and the failed chunks are reported in the {@link NotesBatchResult}.
+     * The callback's {@code onError} is invoked only when every chunk failed.
      * </p>
      *
      * @param notesID  a {@link List} of note document IDs to fetch
      * @param callback a callback instance to handle the retrieved notes
      */
-    public void getNotes(List<String> notesID, NotesCallback<QuerySnapshot, Exception> callback) {
-        if (!UserController.isLoggedIn() || notesID == null || notesID.isEmpty()) {
-            callback.onSuccess(null);
+    public void getNotes(List<String> notesID, NotesCallback<NotesBatchResult, Exception> callback) {
+        if (!UserController.isLoggedIn()) {
+            callback.onError(new NoteCollectionException("User is not signed in."));
             return;
         }
 
-        db.collection(FirestoreConstants.COLLECTION_NOTES)
-                .document("notes")
-                .collection("data")
-                .whereIn(FieldPath.documentId(), notesID)
-                .get()
-                .addOnSuccessListener(callback::onSuccess);
+        if (notesID == null || notesID.isEmpty()) {
+            callback.onSuccess(NotesBatchResult.empty());
+            return;
+        }
+
+        List<String> ids = new ArrayList<>(new LinkedHashSet<>(notesID));
+        List<List<String>> chunks = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i += WHERE_IN_LIMIT)
+            chunks.add(ids.subList(i, Math.min(i + WHERE_IN_LIMIT, ids.size())));
+
+        List<Task<QuerySnapshot>> tasks = new ArrayList<>();
+        for (List<String> chunk : chunks) {
+            tasks.add(db.collection(FirestoreConstants.COLLECTION_NOTES)
+                    .document(FirestoreConstants.Notes.DOCUMENT_ALL)
+                    .collection(FirestoreConstants.Notes.COLLECTION_DATA)
+                    .whereIn(FieldPath.documentId(), chunk)
+                    .get());
+        }
+
+        Tasks.whenAllComplete(tasks).addOnCompleteListener(done -> {
+            Map<String, DocumentSnapshot> byId = new HashMap<>();
+            List<List<String>> failedChunks = new ArrayList<>();
+            for (int i = 0; i < tasks.size(); i++) {
+                Task<QuerySnapshot> task = tasks.get(i);
+                if (task.isSuccessful() && task.getResult() != null) {
+                    for (DocumentSnapshot document : task.getResult())
+                        byId.put(document.getId(), document);
+                } else {
+                    failedChunks.add(new ArrayList<>(chunks.get(i)));
+                }
+            }
+
+            if (failedChunks.size() == chunks.size()) {
+                callback.onError(new NoteCollectionException());
+                return;
+            }
+
+            List<DocumentSnapshot> ordered = new ArrayList<>(byId.size());
+            for (String id : ids) {
+                DocumentSnapshot document = byId.get(id);
+                if (document != null)
+                    ordered.add(document);
+            }
+
+            callback.onSuccess(new NotesBatchResult(ordered, failedChunks));
+        });
     }
 
     /**
-     * Retrieves all notes from the Firestore database.
+     * Retrieves a page of the notes written by the given user, from the most recent.
      * <p>
-     * This method queries the "notes" collection and triggers the provided callback for each note
-     * retrieved successfully.
+     * The query needs the composite index {@code userId ASC, timestamp DESC} on the collection
+     * {@link FirestoreConstants.Notes#COLLECTION_DATA}: the project doesn't deploy its indexes from
+     * this repository, so it must be created in the Firebase console (the error of the first query
+     * links to it).
      * </p>
      *
-     * @param callback a callback instance to handle the retrieved notes
+     * @param userId      the author of the notes
+     * @param startAfter  the last document of the previous page, {@code null} for the first page
+     * @param pageSize    max number of notes of the page
+     * @param callback    a callback instance to handle the notes of the page
      */
-    public void getAllNotes(String country, NotesCallback<QuerySnapshot, Exception> callback) {
-        if (!UserController.isLoggedIn())
+    public void getUserNotesPage(String userId, @Nullable DocumentSnapshot startAfter, int pageSize,
+                                 NotesCallback<List<DocumentSnapshot>, Exception> callback) {
+        if (!UserController.isLoggedIn()) {
+            callback.onError(new NoteCollectionException("User is not signed in."));
             return;
+        }
 
-        db.collection(FirestoreConstants.COLLECTION_NOTES)
-                .document(country)
-                .collection("data")
-                .get()
-                .addOnSuccessListener(callback::onSuccess);
+        Query query = db.collection(FirestoreConstants.COLLECTION_NOTES)
+                .document(FirestoreConstants.Notes.DOCUMENT_ALL)
+                .collection(FirestoreConstants.Notes.COLLECTION_DATA)
+                .whereEqualTo(FirestoreConstants.Notes.FIELD_USER_ID, userId)
+                .orderBy(FirestoreConstants.Notes.FIELD_TIMESTAMP, Query.Direction.DESCENDING)
+                .limit(pageSize);
+
+        if (startAfter != null)
+            query = query.startAfter(startAfter);
+
+        query.get()
+                .addOnSuccessListener(snapshot -> callback.onSuccess(snapshot.getDocuments()))
+                .addOnFailureListener(e -> callback.onError(new NoteCollectionException()));
     }
 
     /**
-     * Retrieves all notes from the Firestore database using listener on snapshot update.
+     * Listens the pins of the notes of a single geohash cell
+     * (see {@link FirestoreConstants.Notes#COLLECTION_PINS}).
+     * <p>
+     * The callback receives every snapshot of the range query, the caller should use
+     * {@link QuerySnapshot#getDocumentChanges()} to apply only what changed since the previous event.
+     * With {@code updatedAfter} only the pins written after that server time are listened
+     * (see {@link FirestoreConstants.Notes#FIELD_UPDATED_AT}): the pins deleted aren't reported,
+     * use {@link #countPinsInCell} to find out when the cell must be downloaded again.
+     * The metadata changes are listened too, so a snapshot of the server follows the one served
+     * from the persistence of Firestore even when nothing changed.
+     * </p>
      *
-     * @param callback
-     * @param listen for change signature
+     * @param prefix       the geohash prefix of the cell (see {@link GeoHash#coveringPrefixes})
+     * @param updatedAfter the watermark of the cell, {@code null} to listen every pin of the cell
+     * @param callback     a callback instance to handle the snapshots of the cell
+     * @return the registration of the listener, {@code null} if the user isn't logged in
      */
-    public void getAllNotes(String country, NotesCallback<QuerySnapshot, Exception> callback, boolean listen) {
+    @Nullable
+    public ListenerRegistration listenPinsInCell(String country, String prefix, @Nullable Timestamp updatedAfter,
+                                                 NotesCallback<QuerySnapshot, Exception> callback) {
         if (!UserController.isLoggedIn())
+            return null;
+
+        Query query = updatedAfter == null
+                ? pinsRangeQuery(country, prefix)
+                : pinsCollection(country)
+                .whereGreaterThanOrEqualTo(FirestoreConstants.Notes.FIELD_GEOHASH, prefix)
+                .whereLessThanOrEqualTo(FirestoreConstants.Notes.FIELD_GEOHASH, prefix + GEOHASH_RANGE_END)
+                .whereGreaterThan(FirestoreConstants.Notes.FIELD_UPDATED_AT, updatedAfter);
+
+        return query.addSnapshotListener(MetadataChanges.INCLUDE, (value, error) -> {
+            if (!UserController.isLoggedIn())
+                return;
+
+            if (error != null) {
+                callback.onError(error);
+                return;
+            }
+
+            if (value != null)
+                callback.onSuccess(value);
+        });
+    }
+
+    /**
+     * Retrieves every pin of a single geohash cell from the server.
+     *
+     * @param callback a callback instance to handle the pins of the cell
+     */
+    public void getPinsInCell(String country, String prefix, NotesCallback<QuerySnapshot, Exception> callback) {
+        if (!UserController.isLoggedIn()) {
+            callback.onError(new NoteCollectionException("User is not signed in."));
             return;
+        }
 
-        if (listen)
-            db.collection(FirestoreConstants.COLLECTION_NOTES)
-                    .document(country)
-                    .collection("data")
-                    .addSnapshotListener(new EventListener<QuerySnapshot>() {
-                @Override
-                public void onEvent(@Nullable @org.jetbrains.annotations.Nullable QuerySnapshot value, @Nullable @org.jetbrains.annotations.Nullable FirebaseFirestoreException error) {
+        pinsRangeQuery(country, prefix).get(Source.SERVER)
+                .addOnSuccessListener(callback::onSuccess)
+                .addOnFailureListener(callback::onError);
+    }
+
+    /**
+     * Counts the pins of a single geohash cell on the server, with an aggregation query: it costs
+     * a read every thousand pins instead of a read per pin.
+     *
+     * @param callback a callback instance to handle the number of pins of the cell
+     */
+    public void countPinsInCell(String country, String prefix, NotesCallback<Long, Exception> callback) {
+        if (!UserController.isLoggedIn()) {
+            callback.onError(new NoteCollectionException("User is not signed in."));
+            return;
+        }
+
+        pinsRangeQuery(country, prefix).count().get(AggregateSource.SERVER)
+                .addOnSuccessListener(snapshot -> callback.onSuccess(snapshot.getCount()))
+                .addOnFailureListener(callback::onError);
+    }
+
+    /**
+     * Listens the pins of the notes dedicated to the given user
+     * (see {@link FirestoreConstants.Users#COLLECTION_INBOX}).
+     *
+     * @param callback a callback instance to handle the snapshots of the inbox
+     * @return the registration of the listener, {@code null} if the user isn't logged in
+     */
+    @Nullable
+    public ListenerRegistration listenInbox(String uid, NotesCallback<QuerySnapshot, Exception> callback) {
+        if (!UserController.isLoggedIn())
+            return null;
+
+        return db.collection(FirestoreConstants.COLLECTION_USERS)
+                .document(uid)
+                .collection(FirestoreConstants.Users.COLLECTION_INBOX)
+                .addSnapshotListener((value, error) -> {
                     if (!UserController.isLoggedIn())
                         return;
 
@@ -160,10 +382,21 @@ public class NotesDAO {
                         return;
                     }
 
-                    callback.onSuccess(value);
-                }
-            });
-        else
-            getAllNotes(country, callback);
+                    if (value != null)
+                        callback.onSuccess(value);
+                });
+    }
+
+    private CollectionReference pinsCollection(String country) {
+        return db.collection(FirestoreConstants.COLLECTION_NOTES)
+                .document(country)
+                .collection(FirestoreConstants.Notes.COLLECTION_PINS);
+    }
+
+    private Query pinsRangeQuery(String country, String prefix) {
+        return pinsCollection(country)
+                .orderBy(FirestoreConstants.Notes.FIELD_GEOHASH)
+                .startAt(prefix)
+                .endAt(prefix + GEOHASH_RANGE_END);
     }
 }
@@ -0,0 +1,312 @@
+package com.peppe289.echotrail.dao.notes;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+import com.peppe289.echotrail.controller.callback.NotesCallback;
+import com.peppe289.echotrail.controller.user.UserController;
+import com.peppe289.echotrail.model.NoteDocument;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A persisted outbox for the new notes.
+ * <p>
+ * A note is first stored in a local SQLite table and only then sent to Firestore through
+ * {@link NotesDAO#saveNote(NoteDocument, String, NotesCallback)}. The ID of the document is
+ * assigned on the device, so sending the same note again overwrites the same documents and
+ * can't create duplicates. When a commit fails the note is retried with exponential backoff,
+ * and immediately when the network comes back. The row is deleted only after the commit
+ * succeeds, so the notes survive the death of the process and are sent at the next start.
+ * A note rejected by the backend is discarded, and removed from the {@link NotesCacheDAO} too so that
+ * it isn't shown anymore.
+ * </p>
+ * All the methods must be called from the main thread.
+ */
+public class NotesOutbox {
+    private static final String TAG = "NotesOutbox";
+
+    private static final long MIN_BACKOFF_MS = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_BACKOFF_MS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final String TABLE_OUTBOX = "outbox";
+    private static final String COLUMNS = "id, user_id, username, content, city, send_to, "
+            + "has_coordinates, latitude, longitude, geohash, timestamp, country, attempts";
+
+    private static NotesOutbox instance;
+
+    private final Helper helper;
+    private final NotesDAO notesDAO;
+    private final NotesCacheDAO notesCache;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable retryRunnable = this::sendPending;
+
+    /**
+     * IDs of the notes whose commit is running.
+     */
+    private final Set<String> sending = new HashSet<>();
+
+    private NotesOutbox(Context context, NotesDAO notesDAO, NotesCacheDAO notesCache) {
+        this.helper = new Helper(context);
+        this.notesDAO = notesDAO;
+        this.notesCache = notesCache;
+
+        ConnectivityManager connectivityManager = context.getSystemService(ConnectivityManager.class);
+        if (connectivityManager != null) {
+            connectivityManager.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(@NonNull Network network) {
+                    mainHandler.post(NotesOutbox.this::sendPending);
+                }
+            });
+        }
+
+        // the notes left by the previous process.
+        sendPending();
+    }
+
+    public static synchronized NotesOutbox getInstance(Context context) {
+        if (instance == null) {
+            instance = new NotesOutbox(context.getApplicationContext(), NotesDAO.getInstance(),
+                    NotesCacheDAO.getInstance(context));
+        }
+        return instance;
+    }
+
+    /**
+     * The state of a note sent through the outbox.
+     */
+    public enum State {
+        /**
+         * The note is stored on the device and will be sent as soon as possible.
+         */
+        QUEUED,
+        /**
+         * The note was written to the backend.
+         */
+        COMMITTED,
+        /**
+         * The note was rejected by the backend and discarded.
+         */
+        FAILED,
+    }
+
+    /**
+     * Stores the note and tries to send it.
+     * <p>
+     * The callback is invoked with {@link State#QUEUED} once the note is stored and then with
+     * {@link State#COMMITTED} or {@link State#FAILED} if the first attempt completes. The retries
+     * after a transient error aren't reported.
+     * </p>
+     *
+     * @param note     the note with the ID assigned by {@link NotesDAO#newNoteId()}
+     * @param country  the country collection of the note
+     * @param callback invoked with the state of the note
+     */
+    public void enqueue(NoteDocument note, String country, NotesCallback<State, Exception> callback) {
+        executor.execute(() -> {
+            try {
+                ContentValues values = toValues(note, country);
+                helper.getWritableDatabase().insertWithOnConflict(TABLE_OUTBOX, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Unable to store the note", e);
+                mainHandler.post(() -> callback.onError(e));
+                return;
+            }
+
+            mainHandler.post(() -> {
+                callback.onSuccess(State.QUEUED);
+                send(new Pending(note, country, 0), callback);
+            });
+        });
+    }
+
+    /**
+     * Sends every note of the outbox not already being sent.
+     */
+    public void sendPending() {
+        mainHandler.removeCallbacks(retryRunnable);
+        executor.execute(() -> {
+            List<Pending> notes = new ArrayList<>();
+            try (Cursor cursor = helper.getReadableDatabase().rawQuery(
+                    "SELECT " + COLUMNS + " FROM " + TABLE_OUTBOX + " ORDER BY timestamp", null)) {
+                while (cursor.moveToNext())
+                    notes.add(readPending(cursor));
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Unable to read the outbox", e);
+                return;
+            }
+
+            mainHandler.post(() -> {
+                for (Pending pending : notes)
+                    send(pending, null);
+            });
+        });
+    }
+
+    private void send(Pending pending, @Nullable NotesCallback<State, Exception> callback) {
+        String id = pending.note.getId();
+        // left by a process killed during a logout: never sent with another account.
+        if (!UserController.getUid().equals(pending.note.getUserId()) || !sending.add(id))
+            return;
+
+        notesDAO.saveNote(pending.note, pending.country, new NotesCallback<String, Exception>() {
+            @Override
+            public void onSuccess(String noteId) {
+                sending.remove(id);
+                delete(id);
+                if (callback != null)
+                    callback.onSuccess(State.COMMITTED);
+            }
+
+            @Override
+            public void onError(Exception error) {
+                sending.remove(id);
+                if (!isRetryable(error)) {
+                    Log.e(TAG, "Note " + id + " rejected, discarding it", error);
+                    delete(id);
+                    // the note was cached when saved, the server will never have it.
+                    notesCache.removeAll(Collections.singletonList(id));
+                    if (callback != null)
+                        callback.onSuccess(State.FAILED);
+                    return;
+                }
+
+                Log.w(TAG, "Unable to send note " + id + ", retrying later", error);
+                int attempts = pending.attempts + 1;
+                executor.execute(() -> {
+                    ContentValues values = new ContentValues();
+                    values.put("attempts", attempts);
+                    helper.getWritableDatabase().update(TABLE_OUTBOX, values, "id = ?", new String[]{id});
+                });
+                scheduleRetry(attempts);
+            }
+        });
+    }
+
+    /**
+     * Removes every note not sent yet and stops the retries, used on logout: the notes can only be
+     * sent by their author.
+     */
+    public void clear() {
+        mainHandler.removeCallbacks(retryRunnable);
+        executor.execute(() -> helper.getWritableDatabase().delete(TABLE_OUTBOX, null, null));
+    }
+
+    private void scheduleRetry(int attempts) {
+        long delay = Math.min(MAX_BACKOFF_MS, MIN_BACKOFF_MS << Math.min(attempts - 1, 16));
+        mainHandler.removeCallbacks(retryRunnable);
+        mainHandler.postDelayed(retryRunnable, delay);
+    }
+
+    private void delete(String id) {
+        executor.execute(() -> helper.getWritableDatabase().delete(TABLE_OUTBOX, "id = ?", new String[]{id}));
+    }
+
+    private static boolean isRetryable(Exception e) {
+        if (!(e instanceof FirebaseFirestoreException))
+            return true;
+
+        FirebaseFirestoreException.Code code = ((FirebaseFirestoreException) e).getCode();
+        return code != FirebaseFirestoreException.Code.PERMISSION_DENIED
+                && code != FirebaseFirestoreException.Code.INVALID_ARGUMENT;
+    }
+
+    private static ContentValues toValues(NoteDocument note, String country) {
+        ContentValues values = new ContentValues();
+        values.put("id", note.getId());
+        values.put("user_id", note.getUserId());
+        values.put("username", note.getUsername());
+        values.put("content", note.getContent());
+        values.put("city", note.getCity());
+        values.put("send_to", note.getSendTo());
+        values.put("has_coordinates", note.hasCoordinates() ? 1 : 0);
+        values.put("latitude", note.getLatitude());
+        values.put("longitude", note.getLongitude());
+        values.put("geohash", note.getGeohash());
+        values.put("timestamp", note.getTimestamp());
+        values.put("country", country);
+        values.put("attempts", 0);
+        return values;
+    }
+
+    private static Pending readPending(Cursor cursor) {
+        NoteDocument note = new NoteDocument(
+                cursor.getString(0),
+                cursor.getString(1),
+                cursor.getString(2),
+                cursor.getString(3),
+                cursor.getString(4),
+                cursor.getString(5),
+                cursor.getInt(6) == 1,
+                cursor.getDouble(7),
+                cursor.getDouble(8),
+                cursor.getString(9),
+                cursor.getLong(10));
+        return new Pending(note, cursor.getString(11), cursor.getInt(12));
+    }
+
+    private static class Pending {
+        final NoteDocument note;
+        final String country;
+        final int attempts;
+
+        Pending(NoteDocument note, String country, int attempts) {
+            this.note = note;
+            this.country = country;
+            this.attempts = attempts;
+        }
+    }
+
+    private static class Helper extends SQLiteOpenHelper {
+        private static final String DATABASE_NAME = "notes_outbox.db";
+        private static final int DATABASE_VERSION = 1;
+
+        Helper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_OUTBOX + " ("
+                    + "id TEXT PRIMARY KEY, "
+                    + "user_id TEXT, "
+                    + "username TEXT, "
+                    + "content TEXT, "
+                    + "city TEXT, "
+                    + "send_to TEXT, "
+                    + "has_coordinates INTEGER NOT NULL DEFAULT 0, "
+                    + "latitude REAL NOT NULL DEFAULT 0, "
+                    + "longitude REAL NOT NULL DEFAULT 0, "
+                    + "geohash TEXT, "
+                    + "timestamp INTEGER NOT NULL, "
+                    + "country TEXT NOT NULL, "
+                    + "attempts INTEGER NOT NULL DEFAULT 0)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // nothing to migrate yet: version 1 is the first one.
+        }
+    }
+}
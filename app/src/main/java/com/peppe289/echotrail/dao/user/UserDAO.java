@@ -1,9 +1,11 @@
 package com.peppe289.echotrail.dao.user;
 
 import android.util.Log;
+import androidx.annotation.Nullable;
 import com.google.firebase.auth.AuthCredential;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.FieldValue;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.QuerySnapshot;
@@ -11,6 +13,7 @@ import com.google.firebase.firestore.SetOptions;
 import com.peppe289.echotrail.annotations.TestOnly;
 import com.peppe289.echotrail.controller.callback.UserCallback;
 import com.peppe289.echotrail.controller.user.UserController;
+import com.peppe289.echotrail.dao.WriteBehindQueue;
 import com.peppe289.echotrail.exceptions.UserCollectionException;
 import com.peppe289.echotrail.model.Session;
 import com.peppe289.echotrail.model.User;
@@ -26,6 +29,11 @@ import java.util.Collections;
  */
 public class UserDAO {
 
+    /**
+     * Max time the sign out waits for the pending updates of the user to be written.
+     */
+    private static final long SIGN_OUT_FLUSH_TIMEOUT_MS = 5000;
+
     private final FirebaseAuth auth;
     private final FirebaseFirestore db;
     private static UserDAO instance;
@@ -84,27 +92,49 @@ public class UserDAO {
     }
 
     public void updateNotesList(String noteId) {
-        db.collection(FirestoreConstants.COLLECTION_USERS)
-                .document(getUid())
-                .update(FirestoreConstants.Users.FIELD_PUBLISHED_NOTES, FieldValue.arrayUnion(noteId));
+        arrayUnion(getUid(), FirestoreConstants.Users.FIELD_PUBLISHED_NOTES, noteId);
     }
 
     public void updateReadNotesList(String noteId) {
-        db.collection(FirestoreConstants.COLLECTION_USERS)
-                .document(getUid())
-                .update(FirestoreConstants.Users.FIELD_READED_NOTES, FieldValue.arrayUnion(noteId));
+        arrayUnion(getUid(), FirestoreConstants.Users.FIELD_READED_NOTES, noteId);
     }
 
     public void updateUserLinks(String link) {
-        db.collection(FirestoreConstants.COLLECTION_USERS)
-                .document(getUid())
-                .update(FirestoreConstants.Users.FIELD_LINKS, FieldValue.arrayUnion(link));
+        arrayUnion(getUid(), FirestoreConstants.Users.FIELD_LINKS, link);
     }
 
     public void removeUserLink(String link) {
-        db.collection(FirestoreConstants.COLLECTION_USERS)
-                .document(getUid())
-                .update(FirestoreConstants.Users.FIELD_LINKS, FieldValue.arrayRemove(link));
+        DocumentReference userRef = db.collection(FirestoreConstants.COLLECTION_USERS).document(getUid());
+        WriteBehindQueue queue = WriteBehindQueue.getInstance();
+        if (queue != null)
+            queue.arrayRemove(userRef.getPath(), FirestoreConstants.Users.FIELD_LINKS, link);
+        else
+            userRef.update(FirestoreConstants.Users.FIELD_LINKS, FieldValue.arrayRemove(link));
+    }
+
+    /**
+     * Adds a value to an array of the user document through the {@link WriteBehindQueue},
+     * so the updates done in a short time are written together.
+     */
+    private void arrayUnion(String uid, String field, String value) {
+        DocumentReference userRef = db.collection(FirestoreConstants.COLLECTION_USERS).document(uid);
+        WriteBehindQueue queue = WriteBehindQueue.getInstance();
+        if (queue != null)
+            queue.arrayUnion(userRef.getPath(), field, value);
+        else
+            userRef.update(field, FieldValue.arrayUnion(value));
+    }
+
+    /**
+     * Same as {@link #arrayUnion} but sets a field.
+     */
+    private void setField(String uid, String field, Object value) {
+        DocumentReference userRef = db.collection(FirestoreConstants.COLLECTION_USERS).document(uid);
+        WriteBehindQueue queue = WriteBehindQueue.getInstance();
+        if (queue != null)
+            queue.set(userRef.getPath(), field, value);
+        else
+            userRef.update(field, value);
     }
 
     /**
@@ -193,8 +223,26 @@ public class UserDAO {
                 });
     }
 
-    public void signOut() {
-        auth.signOut();
+    /**
+     * Signs out the user, once the updates of the {@link WriteBehindQueue} are written: the writes
+     * of a user signed out are sent only when the same user signs in again.
+     *
+     * @param onSignedOut invoked on the main thread when the user is signed out, can be {@code null}
+     */
+    public void signOut(@Nullable Runnable onSignedOut) {
+        WriteBehindQueue queue = WriteBehindQueue.getInstance();
+        if (queue == null) {
+            auth.signOut();
+            if (onSignedOut != null)
+                onSignedOut.run();
+            return;
+        }
+
+        queue.flush(SIGN_OUT_FLUSH_TIMEOUT_MS, () -> {
+            auth.signOut();
+            if (onSignedOut != null)
+                onSignedOut.run();
+        });
     }
 
     public boolean isSignedIn() {
@@ -222,9 +270,7 @@ public class UserDAO {
     }
 
     public void setImageIndex(String uid, int imageIndex) {
-        db.collection(FirestoreConstants.COLLECTION_USERS)
-                .document(uid)
-                .update(FirestoreConstants.Users.FIELD_IMAGE_INDEX, imageIndex);
+        setField(uid, FirestoreConstants.Users.FIELD_IMAGE_INDEX, imageIndex);
     }
 
     public void setImageIndex(int imageIndex) {
@@ -232,9 +278,7 @@ public class UserDAO {
     }
 
     public void setColorIndex(String uid, int colorIndex) {
-        db.collection(FirestoreConstants.COLLECTION_USERS)
-                .document(uid)
-                .update(FirestoreConstants.Users.FIELD_COLOR_INDEX, colorIndex);
+        setField(uid, FirestoreConstants.Users.FIELD_COLOR_INDEX, colorIndex);
     }
 
     public void setColorIndex(int colorIndex) {
@@ -243,7 +287,7 @@ public class UserDAO {
 
 
     public void setUsername(String username) {
-        db.collection(FirestoreConstants.COLLECTION_USERS).document(getUid()).update(FirestoreConstants.Users.FIELD_USERNAME, username);
+        setField(getUid(), FirestoreConstants.Users.FIELD_USERNAME, username);
     }
 
     /**
@@ -272,8 +316,6 @@ public class UserDAO {
     }
 
     public void setDefaultAnonymousPreference(boolean isAnonymous) {
-        db.collection(FirestoreConstants.COLLECTION_USERS)
-                .document(getUid())
-                .update(FirestoreConstants.Users.FIELD_PREF_ANONYMOUS, isAnonymous);
+        setField(getUid(), FirestoreConstants.Users.FIELD_PREF_ANONYMOUS, isAnonymous);
     }
 }
@@ -0,0 +1,34 @@
+package com.peppe289.echotrail.model;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A change of a note on the map: the note was added, modified or removed since the last update.
+ */
+public class NoteChange {
+    public enum Type {
+        ADDED,
+        MODIFIED,
+        REMOVED,
+    }
+
+    @NonNull
+    private final Type type;
+    @NonNull
+    private final NoteDocument note;
+
+    public NoteChange(@NonNull Type type, @NonNull NoteDocument note) {
+        this.type = type;
+        this.note = note;
+    }
+
+    @NonNull
+    public Type getType() {
+        return type;
+    }
+
+    @NonNull
+    public NoteDocument getNote() {
+        return note;
+    }
+}
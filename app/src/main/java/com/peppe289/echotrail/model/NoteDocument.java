@@ -0,0 +1,146 @@
+package com.peppe289.echotrail.model;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.GeoPoint;
+import com.peppe289.echotrail.utils.FirestoreConstants;
+
+/**
+ * The data of a note as stored in the "notes" collection, detached from Firestore so it can
+ * be kept in the local cache and served without a network round-trip.
+ * <p>
+ * Unlike {@link Note}, which holds what a card shows, this class holds the raw fields
+ * of the document.
+ * </p>
+ */
+public class NoteDocument {
+    @NonNull
+    private final String id;
+    @Nullable
+    private final String userId;
+    @Nullable
+    private final String username;
+    @Nullable
+    private final String content;
+    @Nullable
+    private final String city;
+    @Nullable
+    private final String sendTo;
+    private final boolean hasCoordinates;
+    private final double latitude;
+    private final double longitude;
+    @Nullable
+    private final String geohash;
+    /**
+     * Creation time in milliseconds, 0 if unknown.
+     */
+    private final long timestamp;
+
+    public NoteDocument(@NonNull String id, @Nullable String userId, @Nullable String username,
+                        @Nullable String content, @Nullable String city, @Nullable String sendTo,
+                        boolean hasCoordinates, double latitude, double longitude,
+                        @Nullable String geohash, long timestamp) {
+        this.id = id;
+        this.userId = userId;
+        this.username = username;
+        this.content = content;
+        this.city = city;
+        this.sendTo = sendTo;
+        this.hasCoordinates = hasCoordinates;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.geohash = geohash;
+        this.timestamp = timestamp;
+    }
+
+    public static NoteDocument fromSnapshot(DocumentSnapshot document) {
+        GeoPoint coordinates = document.getGeoPoint(FirestoreConstants.Notes.FIELD_COORDINATES);
+        Timestamp timestamp = document.getTimestamp(FirestoreConstants.Notes.FIELD_TIMESTAMP);
+
+        String sendTo = null;
+        try {
+            sendTo = document.getString(FirestoreConstants.Notes.FIELD_SEND_TO);
+        } catch (RuntimeException ignored) {
+        }
+
+        return new NoteDocument(
+                document.getId(),
+                document.getString(FirestoreConstants.Notes.FIELD_USER_ID),
+                document.getString(FirestoreConstants.Notes.FIELD_USERNAME),
+                document.getString(FirestoreConstants.Notes.FIELD_CONTENT),
+                document.getString(FirestoreConstants.Notes.FIELD_CITY),
+                sendTo,
+                coordinates != null,
+                coordinates == null ? 0 : coordinates.getLatitude(),
+                coordinates == null ? 0 : coordinates.getLongitude(),
+                document.getString(FirestoreConstants.Notes.FIELD_GEOHASH),
+                timestamp == null ? 0 : timestamp.toDate().getTime());
+    }
+
+    /**
+     * A note known only by its ID, like the ones reported as removed.
+     */
+    public static NoteDocument ofId(@NonNull String id) {
+        return new NoteDocument(id, null, null, null, null, null, false, 0, 0, null, 0);
+    }
+
+    @NonNull
+    public String getId() {
+        return id;
+    }
+
+    @Nullable
+    public String getUserId() {
+        return userId;
+    }
+
+    @Nullable
+    public String getUsername() {
+        return username;
+    }
+
+    @Nullable
+    public String getContent() {
+        return content;
+    }
+
+    @Nullable
+    public String getCity() {
+        return city;
+    }
+
+    @Nullable
+    public String getSendTo() {
+        return sendTo;
+    }
+
+    public boolean hasCoordinates() {
+        return hasCoordinates;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    @Nullable
+    public String getGeohash() {
+        return geohash;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return {@code true} if the note is dedicated to the given user
+     */
+    public boolean isDedicatedTo(String uid) {
+        return sendTo != null && sendTo.equals(uid);
+    }
+}
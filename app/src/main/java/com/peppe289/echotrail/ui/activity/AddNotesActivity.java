@@ -177,6 +177,15 @@ public class AddNotesActivity extends AppCompatActivity {
                         location.getLongitude(), new HelperCallback<Address, ErrorType>() {
                             @Override
                             public void onSuccess(Address locationAddress) {
+                                // the notes are listed by city, one without it would be hidden.
+                                if (locationAddress == null || locationAddress.getLocality() == null
+                                        || locationAddress.getCountryName() == null) {
+                                    canPush = true;
+                                    loadingManager.hideLoading();
+                                    handleError(ErrorType.POSITION_NOT_FOUND_ERROR);
+                                    return;
+                                }
+
                                 UserController.getUsername(new ControllerCallback<String, ErrorType>() {
                                     @Override
                                     public void onSuccess(String username) {
@@ -190,7 +199,11 @@ public class AddNotesActivity extends AppCompatActivity {
                                             data.put("send_to", friend.getUid());
                                         }
 
-                                        NotesController.saveNote(data, (errorType) -> {
+                                        NotesController.saveNote(data, (state, errorType) -> {
+                                            // the note is already safe on the device, the outbox will send it.
+                                            if (state == NotesController.SaveState.COMMITTED || isFinishing())
+                                                return;
+
                                             // like mutex to avoid multiple click on save button.
                                             canPush = true;
                                             loadingManager.hideLoading();
@@ -20,6 +20,7 @@ import com.peppe289.echotrail.controller.notes.NotesController;
 import com.peppe289.echotrail.controller.user.FriendsController;
 import com.peppe289.echotrail.controller.user.PreferencesController;
 import com.peppe289.echotrail.controller.user.UserController;
+import com.peppe289.echotrail.dao.WriteBehindQueue;
 import com.peppe289.echotrail.databinding.ActivityMainBinding;
 import com.peppe289.echotrail.utils.*;
 
@@ -44,7 +45,8 @@ public class MainActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         UserController.init();
-        NotesController.init();
+        NotesController.init(getApplicationContext());
+        WriteBehindQueue.init(getApplicationContext());
         FriendsController.init();
         DefaultErrorHandler.getInstance(getApplicationContext());
         FirebaseApp.initializeApp(getApplicationContext());
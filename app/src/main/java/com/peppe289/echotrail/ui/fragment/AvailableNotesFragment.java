@@ -9,9 +9,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.fragment.app.Fragment;
-import com.google.firebase.Timestamp;
-import com.google.firebase.firestore.DocumentSnapshot;
-import com.google.firebase.firestore.QuerySnapshot;
+import com.peppe289.echotrail.model.NoteDocument;
 import com.peppe289.echotrail.ui.activity.UserViewActivity;
 import com.peppe289.echotrail.R;
 import com.peppe289.echotrail.controller.callback.ControllerCallback;
@@ -79,28 +77,22 @@ public class AvailableNotesFragment extends Fragment {
             }
         }
 
-        NotesController.getNotes(this.noteIDs, new ControllerCallback<QuerySnapshot, ErrorType>() {
+        NotesController.getNotes(this.noteIDs, new ControllerCallback<List<NoteDocument>, ErrorType>() {
             @Override
-            public void onSuccess(QuerySnapshot notes) {
+            public void onSuccess(List<NoteDocument> notes) {
                 if (notes == null || notes.isEmpty()) {
                     TextView textView = binding.textListEmpty;
                     textView.setVisibility(View.VISIBLE);
                     loadingManager.hideLoading();
                     return;
                 }
-                for (DocumentSnapshot document : notes) {
-                    String city = document.getString("city");
-                    String description = document.getString("content");
-                    Timestamp timestamp = (Timestamp) document.get("timestamp");
-                    String formattedDate = formatDate(timestamp);
-                    String username = document.getString("username");
-
-                    String isFor = null;
-                    try {
-                        // check if is dedicated note.
-                        isFor = document.getString("send_to");
-                    } catch (Exception ignore) {
-                    }
+                // the cached notes can be delivered before the network ones, rebuild the list.
+                noteCustomAdapter.clear();
+                for (NoteDocument document : notes) {
+                    String city = document.getCity();
+                    String description = document.getContent();
+                    String formattedDate = formatDate(document.getTimestamp());
+                    String username = document.getUsername();
 
                     if (description != null && city != null) {
                         Note note = new Note(
@@ -108,10 +100,9 @@ public class AvailableNotesFragment extends Fragment {
                                 description,
                                 formattedDate,
                                 city,
-                                username == null ? null : document.getString("userId"),
+                                username == null ? null : document.getUserId(),
                                 document.getId(),
-                                // check if have this attribute and if is dedicated to the user.
-                                (isFor != null && isFor.compareTo(UserController.getUid()) == 0)
+                                document.isDedicatedTo(UserController.getUid())
                         );
                         noteCustomAdapter.add(note);
                     }
@@ -128,11 +119,11 @@ public class AvailableNotesFragment extends Fragment {
         });
     }
 
-    private String formatDate(Timestamp timestamp) {
-        if (timestamp == null) {
+    private String formatDate(long timestamp) {
+        if (timestamp == 0) {
             return "";
         }
-        Date date = timestamp.toDate();
+        Date date = new Date(timestamp);
         SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy", Locale.getDefault());
         return dateFormat.format(date);
     }
@@ -1,12 +1,10 @@
 package com.peppe289.echotrail.ui.fragment;
 
 import android.Manifest;
-import android.annotation.SuppressLint;
 import android.location.Address;
-import android.location.Location;
-import android.location.LocationListener;
-import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.view.LayoutInflater;
@@ -26,48 +24,45 @@ import com.google.android.material.appbar.AppBarLayout;
 import com.google.android.material.floatingactionbutton.ExtendedFloatingActionButton;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.android.material.search.SearchView;
-import com.google.firebase.firestore.DocumentSnapshot;
-import com.google.firebase.firestore.QuerySnapshot;
 import com.peppe289.echotrail.ui.activity.AddNotesActivity;
 import com.peppe289.echotrail.ui.activity.FriendsActivity;
 import com.peppe289.echotrail.R;
 import com.peppe289.echotrail.controller.callback.ControllerCallback;
 import com.peppe289.echotrail.controller.callback.LocationCallback;
 import com.peppe289.echotrail.controller.notes.NotesController;
+import com.peppe289.echotrail.controller.notes.NotesSubscriptionManager;
 import com.peppe289.echotrail.controller.user.UserController;
+import com.peppe289.echotrail.model.NoteChange;
+import com.peppe289.echotrail.model.NoteDocument;
 import com.peppe289.echotrail.utils.*;
 
 import com.peppe289.echotrail.adapter.SuggestionsAdapter;
 import com.peppe289.echotrail.utils.callback.HelperCallback;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.osmdroid.util.BoundingBox;
 import org.osmdroid.util.GeoPoint;
 import org.osmdroid.views.MapView;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
-
-import static android.content.Context.LOCATION_SERVICE;
+import java.util.Set;
 
 /**
  * A simple {@link Fragment} subclass.
  * create an instance of this fragment.
  */
 @SuppressWarnings("FieldCanBeLocal")
-public class MapFragment extends Fragment implements LocationListener {
+public class MapFragment extends Fragment {
 
     // Data and adapter
     private final List<SuggestionsAdapter.CityProprieties> suggestions = new ArrayList<>();
     // Handlers and helpers
-    private final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
-    private ScheduledFuture<?> scheduledFuture;
+    private static final long SEARCH_DELAY_MS = 300;
+    private final Handler searchHandler = new Handler(Looper.getMainLooper());
+    private final Runnable searchRunnable = this::searchPlaces;
+    private PlaceSearch placeSearch;
+    private String pendingQuery = "";
     // UI components
     private com.google.android.material.search.SearchView searchView;
     private com.google.android.material.search.SearchBar searchBar;
@@ -81,7 +76,11 @@ public class MapFragment extends Fragment implements LocationListener {
     private boolean isFABOpen = false;
     private ExtendedFloatingActionButton publicNotesBtn;
     private ExtendedFloatingActionButton privateNotesBtn;
-    private LocationManager locationManager;
+    // Notes area
+    private static final double NOTES_AREA_RADIUS = 2000;
+    private String country;
+    private NotesSubscriptionManager.AreaSubscription areaSubscription;
+    private NotesSubscriptionManager.Subscription dedicatedNotesSubscription;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -102,9 +101,39 @@ public class MapFragment extends Fragment implements LocationListener {
         return view;
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        if (!isHidden())
+            startLocationUpdates();
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        stopLocationUpdates();
+    }
+
+    /**
+     * The fragment stays alive behind the other tabs: the position isn't followed while it is hidden.
+     */
+    @Override
+    public void onHiddenChanged(boolean hidden) {
+        super.onHiddenChanged(hidden);
+        if (hidden)
+            stopLocationUpdates();
+        else if (isResumed())
+            startLocationUpdates();
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
+        closeSubscriptions();
+        stopLocationUpdates();
+        searchHandler.removeCallbacks(searchRunnable);
+        if (placeSearch != null)
+            placeSearch.cancel();
 
         searchView = null;
         searchBar = null;
@@ -226,14 +255,9 @@ public class MapFragment extends Fragment implements LocationListener {
     // Initialize helpers and request permission
     private void initializeHelpers() {
         locationHelper = new LocationHelper(requireContext());
+        placeSearch = new PlaceSearch(requireContext());
     }
 
-    /**
-     * I can ignore {@code MissingPermission} this because I have {@link LocationHelper} class, and
-     * we should use {@code locationPermissionIsGranted} for check
-     * if we have a permission to pooling GPS position.
-     */
-    @SuppressLint("MissingPermission")
     private void requestLocationPermission() {
         requestPermissionLauncher = registerForActivityResult(new ActivityResultContracts
                         .RequestMultiplePermissions(), result -> {
@@ -241,6 +265,8 @@ public class MapFragment extends Fragment implements LocationListener {
                             Manifest.permission.ACCESS_FINE_LOCATION, false);
                     if (fineLocationGranted != null && fineLocationGranted) {
                         setCurrentLocation();
+                        if (isResumed() && !isHidden())
+                            startLocationUpdates();
                     } else {
                         Toast.makeText(requireContext(),
                                 ErrorType.POSITION_PERMISSION_ERROR.getMessage(requireContext()), Toast.LENGTH_SHORT).show();
@@ -249,111 +275,76 @@ public class MapFragment extends Fragment implements LocationListener {
         );
 
         locationHelper.requestLocationPermission(requestPermissionLauncher);
+    }
+
+    /**
+     * Follows the position of the user on the map, through the updates shared by {@link LocationHelper}.
+     * Their frequency depends on how far the notes on the map are.
+     */
+    private void startLocationUpdates() {
+        if (locationHelper == null || !locationHelper.locationPermissionIsGranted(requireActivity()))
+            return;
+
+        locationHelper.startLocationUpdates(requireContext(), locationUpdatesCallback, mapHelper::distanceToNearestNote);
+    }
 
-        locationManager = (LocationManager) requireActivity().getSystemService(LOCATION_SERVICE);
-        if (locationHelper.locationPermissionIsGranted(requireActivity()))
-            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 1000, 1, this);
+    private void stopLocationUpdates() {
+        if (locationHelper != null)
+            locationHelper.stopLocationUpdates(locationUpdatesCallback);
     }
 
+    private final LocationCallback<GeoPoint, ErrorType> locationUpdatesCallback = new LocationCallback<GeoPoint, ErrorType>() {
+        @Override
+        public void onSuccess(GeoPoint point) {
+            if (!isAdded() || getView() == null) {
+                return;
+            }
+
+            mapHelper.setMapCenter(point, false);
+        }
+
+        @Override
+        public void onError(ErrorType errorType) {
+            // the map keeps showing the last valid position.
+        }
+    };
+
     /**
      * Fetches notes from the Firestore database and adds markers to the map.
      * <p>
-     *     This method retrieves all notes stored in the database and adds a marker for each note
+     *     This method retrieves the notes around the user and adds a marker for each note
      *     to the map. The method also listens for clicks on the markers and launches the
      *     {@link AvailableNotesFragment} when a marker is clicked.
      * </p>
      * This method isn't called periodically, but it triggers the fetch of notes when the
-     * firebase document is updated.
+     * firebase document is updated. The listened area follows the viewport of the map
+     * (see {@link NotesSubscriptionManager}).
      */
     private void fetchNotes() {
+        closeSubscriptions();
+        // the new subscriptions deliver again the notes to show.
+        mapHelper.clearMarkers();
+
+        // the dedicated notes don't depend on the position, they are few and always shown.
+        dedicatedNotesSubscription = NotesController.subscribeDedicatedNotes(noteChangesCallback);
+
         locationHelper.getCurrentLocation(requireContext(), requireActivity(), new LocationCallback<GeoPoint, ErrorType>() {
             @Override
-            public void onSuccess(GeoPoint result) {
-                LocationHelper.getCityName(requireContext(), result.getLatitude(), result.getLongitude(), new HelperCallback<Address, ErrorType>() {
+            public void onSuccess(GeoPoint position) {
+                LocationHelper.getCityName(requireContext(), position.getLatitude(), position.getLongitude(), new HelperCallback<Address, ErrorType>() {
                     @Override
                     public void onSuccess(Address result) {
-                        NotesController.getAllNotes(result.getCountryName(), new ControllerCallback<QuerySnapshot, ErrorType>() {
-                            @Override
-                            public void onSuccess(QuerySnapshot querySnapshot) {
-                                if (!isAdded() || getView() == null) {
-                                    return;
-                                }
-
-                                if (querySnapshot == null || querySnapshot.isEmpty()) return;
-                                for (DocumentSnapshot documentSnapshot : querySnapshot) {
-                                    com.google.firebase.firestore.GeoPoint coordinates = documentSnapshot.getGeoPoint("coordinates");
-                                    String userID = UserController.getUid();
-                                    String noteUserID = documentSnapshot.getString("userId");
-
-                                    // Skip if coordinates are null or note belongs to the current user
-                                    if (coordinates == null || userID.equals(noteUserID)) continue;
-
-                                    try {
-                                        // this note isn't for me, skip...
-                                        String isFor = documentSnapshot.getString("send_to");
-                                        if (isFor != null && !isFor.equals(userID)) continue;
-                                    } catch (Exception ignored) {
-                                    }
-
-                                    GeoPoint noteLocation = new GeoPoint(coordinates.getLatitude(), coordinates.getLongitude());
-
-                                    mapHelper.addMarker(noteLocation, documentSnapshot.getId(), (markerCounter, point) -> {
-                                        GeoPoint clickedPoint = new GeoPoint(point.getLatitude(), point.getLongitude());
-
-                                        // Preliminary filtering of nearby markers
-                                        List<Map.Entry<GeoPoint, List<String>>> nearbyMarkers = markerCounter.entrySet().stream()
-                                                .filter(entry -> MapHelper.arePointsClose(entry.getKey(), clickedPoint, MapHelper.MarkerDistance.CLOSE))
-                                                .collect(Collectors.toList());
-
-                                        // No relevant markers
-                                        if (nearbyMarkers.isEmpty()) return true;
-
-                                        locationHelper.getCurrentLocation(requireContext(), requireActivity(), new LocationCallback<GeoPoint, ErrorType>() {
-                                            @Override
-                                            public void onSuccess(GeoPoint currentLocation) {
-                                                if (!isAdded() || getView() == null) {
-                                                    return;
-                                                }
-
-                                                List<String> readyToSeeIDs = nearbyMarkers.stream()
-                                                        .filter(entry -> MapHelper.arePointsClose(currentLocation, entry.getKey(), MapHelper.MarkerDistance.CLOSE))
-                                                        .flatMap(entry -> entry.getValue().stream()) // Flatten IDs
-                                                        .distinct() // Remove duplicates
-                                                        .collect(Collectors.toList());
-
-                                                // Launch activity if there are notes to see
-                                                if (!readyToSeeIDs.isEmpty()) {
-                                                    launchReadNotesActivity(readyToSeeIDs);
-                                                } else {
-                                                    BottomSheetFragment bottomSheetFragment = BottomSheetFragment.newInstance(getString(R.string.walking_for),
-                                                            getString(R.string.walking_for_read));
-                                                    bottomSheetFragment.show(requireActivity().getSupportFragmentManager(), bottomSheetFragment.getTag());}
-                                            }
-
-                                            @Override
-                                            public void onError(ErrorType errorType) {
-                                                if (!isAdded() || getView() == null) {
-                                                    return;
-                                                }
-
-                                                Toast.makeText(requireContext(), errorType.getMessage(requireContext()), Toast.LENGTH_SHORT).show();
-                                            }
-                                        });
-
-                                        return true;
-                                    });
-                                }
-                            }
-
-                            @Override
-                            public void onError(ErrorType errorType) {
-                                if (!isAdded() || getView() == null) {
-                                    return;
-                                }
-
-                                Toast.makeText(requireContext(), errorType.getMessage(requireContext()), Toast.LENGTH_SHORT).show();
-                            }
-                        }, true);
+                        if (result == null || !isAdded() || getView() == null) {
+                            return;
+                        }
+
+                        country = result.getCountryName();
+                        double[] box = GeoHash.boundingBox(position.getLatitude(), position.getLongitude(), NOTES_AREA_RADIUS);
+                        if (areaSubscription != null)
+                            areaSubscription.close();
+                        areaSubscription = NotesController.subscribeNotesInArea(country, noteChangesCallback);
+                        areaSubscription.setViewport(box[0], box[1], box[2], box[3]);
+                        mapHelper.setOnViewportChangedListener(MapFragment.this::fetchNotesInViewport);
                     }
 
                     @Override
@@ -378,6 +369,147 @@ public class MapFragment extends Fragment implements LocationListener {
         });
     }
 
+    /**
+     * Moves the listened area to the visible one.
+     *
+     * @param viewport the area currently shown by the map
+     */
+    private void fetchNotesInViewport(BoundingBox viewport) {
+        if (areaSubscription == null)
+            return;
+
+        areaSubscription.setViewport(viewport.getLatSouth(), viewport.getLonWest(),
+                viewport.getLatNorth(), viewport.getLonEast());
+    }
+
+    private void closeSubscriptions() {
+        if (areaSubscription != null) {
+            areaSubscription.close();
+            areaSubscription = null;
+        }
+        if (dedicatedNotesSubscription != null) {
+            dedicatedNotesSubscription.close();
+            dedicatedNotesSubscription = null;
+        }
+    }
+
+    /**
+     * Applies only the deltas of the live listener: the markers of the notes that didn't change
+     * are left untouched.
+     */
+    private final ControllerCallback<List<NoteChange>, ErrorType> noteChangesCallback = new ControllerCallback<List<NoteChange>, ErrorType>() {
+        @Override
+        public void onSuccess(List<NoteChange> changes) {
+            if (!isAdded() || getView() == null) {
+                return;
+            }
+
+            for (NoteChange change : changes) {
+                NoteDocument note = change.getNote();
+                switch (change.getType()) {
+                    case ADDED:
+                    case MODIFIED:
+                        showNote(note);
+                        break;
+                    case REMOVED:
+                        mapHelper.removeMarker(note.getId());
+                        break;
+                }
+            }
+        }
+
+        @Override
+        public void onError(ErrorType errorType) {
+            onNotesError(errorType);
+        }
+    };
+
+    /**
+     * Adds the note to the map, or moves its marker if the note is already shown.
+     * Notes of the current user and notes dedicated to other users are removed from the map.
+     */
+    private void showNote(NoteDocument note) {
+        String userID = UserController.getUid();
+
+        // Skip if coordinates are null or note belongs to the current user
+        if (!note.hasCoordinates() || userID.equals(note.getUserId())) {
+            mapHelper.removeMarker(note.getId());
+            return;
+        }
+
+        // this note isn't for me, skip...
+        if (note.getSendTo() != null && !note.isDedicatedTo(userID)) {
+            mapHelper.removeMarker(note.getId());
+            return;
+        }
+
+        GeoPoint noteLocation = new GeoPoint(note.getLatitude(), note.getLongitude());
+        mapHelper.moveMarker(noteLocation, note.getId(), this::onMarkerClick);
+    }
+
+    private void onNotesError(ErrorType errorType) {
+        if (!isAdded() || getView() == null) {
+            return;
+        }
+
+        Toast.makeText(requireContext(), errorType.getMessage(requireContext()), Toast.LENGTH_SHORT).show();
+    }
+
+    private boolean onMarkerClick(GeoPoint point) {
+        // Preliminary filtering of nearby markers
+        List<Map.Entry<GeoPoint, List<String>>> nearbyMarkers = new ArrayList<>(
+                mapHelper.getClustersNear(point, MapHelper.MarkerDistance.CLOSE).entrySet());
+
+        // No relevant markers
+        if (nearbyMarkers.isEmpty()) return true;
+
+        locationHelper.getCurrentLocation(requireContext(), requireActivity(), new LocationCallback<GeoPoint, ErrorType>() {
+            @Override
+            public void onSuccess(GeoPoint currentLocation) {
+                if (!isAdded() || getView() == null) {
+                    return;
+                }
+
+                // the clusters within reach of the user, checked all together.
+                int count = nearbyMarkers.size();
+                double[] latitudes = new double[count];
+                double[] longitudes = new double[count];
+                for (int i = 0; i < count; i++) {
+                    latitudes[i] = nearbyMarkers.get(i).getKey().getLatitude();
+                    longitudes[i] = nearbyMarkers.get(i).getKey().getLongitude();
+                }
+                GeoMath.Fence reach = new GeoMath.Fence(currentLocation.getLatitude(), currentLocation.getLongitude(),
+                        MapHelper.distanceOf(MapHelper.MarkerDistance.CLOSE));
+                int[] inside = new int[count];
+                int found = reach.filter(latitudes, longitudes, count, inside);
+
+                // a note may be in more clusters, keep it once.
+                Set<String> readyToSeeIDs = new LinkedHashSet<>();
+                for (int i = 0; i < found; i++)
+                    readyToSeeIDs.addAll(nearbyMarkers.get(inside[i]).getValue());
+
+                // Launch activity if there are notes to see
+                if (!readyToSeeIDs.isEmpty()) {
+                    launchReadNotesActivity(new ArrayList<>(readyToSeeIDs));
+                } else {
+                    BottomSheetFragment bottomSheetFragment = BottomSheetFragment.newInstance(getString(R.string.walking_for),
+                            getString(R.string.walking_for_read));
+                    bottomSheetFragment.show(requireActivity().getSupportFragmentManager(), bottomSheetFragment.getTag());}
+            }
+
+            @Override
+            public void onError(ErrorType errorType) {
+                if (!isAdded() || getView() == null) {
+                    return;
+                }
+
+                Toast.makeText(requireContext(), errorType.getMessage(requireContext()), Toast.LENGTH_SHORT).show();
+            }
+        });
+
+        return true;
+    }
+
     /**
      * Launches the ReadNotesActivity with the given note IDs.
      */
@@ -393,45 +525,36 @@ public class MapFragment extends Fragment implements LocationListener {
 
     // Handle search query
     private void handleSearchQuery(String query) {
-        if (scheduledFuture != null && !scheduledFuture.isDone()) {
-            scheduledFuture.cancel(false);
-        }
+        searchHandler.removeCallbacks(searchRunnable);
+        pendingQuery = query;
+        searchHandler.postDelayed(searchRunnable, SEARCH_DELAY_MS);
+    }
 
-        scheduledFuture = executorService.schedule(() -> MapHelper.fetchSuggestions(query, new MapHelper.OnFetchSuggestions() {
+    private void searchPlaces() {
+        placeSearch.search(pendingQuery, new HelperCallback<List<SuggestionsAdapter.CityProprieties>, ErrorType>() {
             @Override
-            public void onFetchSuggestions(String responseBody) throws JSONException {
+            public void onSuccess(List<SuggestionsAdapter.CityProprieties> places) {
                 if (!isAdded() || getView() == null) {
                     return;
                 }
 
-                processSuggestionsResponse(responseBody);
+                showSuggestions(places);
             }
 
             @Override
-            public void onErrorMessage(ErrorType errorType) {
+            public void onError(ErrorType errorType) {
                 if (!isAdded() || getView() == null) {
                     return;
                 }
 
-                requireActivity().runOnUiThread(() ->
-                        Toast.makeText(requireContext(), errorType.getMessage(requireContext()), Toast.LENGTH_SHORT).show());
+                Toast.makeText(requireContext(), errorType.getMessage(requireContext()), Toast.LENGTH_SHORT).show();
             }
-        }), 300, TimeUnit.MILLISECONDS);
+        });
     }
 
-
-    // Process suggestions response
-    @SuppressLint("NotifyDataSetChanged")
-    private void processSuggestionsResponse(String responseBody) throws JSONException {
-        JSONArray results = new JSONArray(responseBody);
-        suggestions.clear();
-        for (int i = 0; i < results.length(); i++) {
-            JSONObject result = results.getJSONObject(i);
-            String displayName = result.getString("display_name");
-            suggestions.add(new SuggestionsAdapter.CityProprieties(displayName, result.getDouble("lat"), result.getDouble("lon")));
-        }
-
-        requireActivity().runOnUiThread(() -> adapter.notifyDataSetChanged());
+    // Show the places found
+    private void showSuggestions(List<SuggestionsAdapter.CityProprieties> places) {
+        adapter.setSuggestions(places);
     }
 
     // Set default location
@@ -466,10 +589,4 @@ public class MapFragment extends Fragment implements LocationListener {
         suggestionsList.setVisibility(View.GONE);
         mapHelper.setMapView(new GeoPoint(latitude, longitude));
     }
-
-    @Override
-    public void onLocationChanged(@NonNull Location location) {
-        GeoPoint point = new GeoPoint(location.getLatitude(), location.getLongitude());
-        mapHelper.setMapCenter(point, false);
-    }
 }
@@ -4,18 +4,20 @@ import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.fragment.app.Fragment;
-import com.google.firebase.Timestamp;
-import com.google.firebase.firestore.DocumentSnapshot;
-import com.google.firebase.firestore.QuerySnapshot;
+import com.peppe289.echotrail.model.NoteDocument;
 import com.peppe289.echotrail.ui.activity.UserViewActivity;
 import com.peppe289.echotrail.R;
 import com.peppe289.echotrail.controller.callback.ControllerCallback;
+import com.peppe289.echotrail.controller.notes.NotesController;
+import com.peppe289.echotrail.controller.notes.NotesFeed;
 import com.peppe289.echotrail.controller.user.UserController;
 import com.peppe289.echotrail.databinding.FragmentNotesBinding;
 import com.peppe289.echotrail.model.Note;
+import com.peppe289.echotrail.model.User;
 import com.peppe289.echotrail.ui.custom.CustomListView;
 import com.peppe289.echotrail.utils.*;
 import com.peppe289.echotrail.adapter.NoteCustomAdapter;
@@ -28,7 +30,9 @@ import java.util.*;
  * create an instance of this fragment.
  */
 public class NotesFragment extends Fragment {
-    private final List<String> loadedNoteIds = new ArrayList<>();
+    private final Set<String> loadedNoteIds = new HashSet<>();
+    private List<String> readNoteIds;
+    private NotesFeed notesFeed;
     private FragmentNotesBinding viewBinding;
     private NoteCustomAdapter notesAdapter;
     private LoadingManager loadingIndicator;
@@ -58,6 +62,20 @@ public class NotesFragment extends Fragment {
 
         CustomListView notesListView = viewBinding.notesList;
         notesListView.setAdapter(notesAdapter);
+        notesListView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                // carica la pagina successiva prima di arrivare in fondo alla lista
+                if (notesFeed != null && totalItemCount > 0
+                        && notesFeed.shouldPrefetch(firstVisibleItem + visibleItemCount - 1, totalItemCount)) {
+                    loadNextPage();
+                }
+            }
+        });
 
         // Mostra l'indicatore di caricamento all'avvio
         loadingIndicator.showLoading();
@@ -69,15 +87,25 @@ public class NotesFragment extends Fragment {
     }
 
     private void fetchNotesFromDatabase() {
-        UserController.getReadNotesList(new ControllerCallback<QuerySnapshot, ErrorType>() {
+        UserController.listenerUserInfo(new ControllerCallback<User, ErrorType>() {
             @Override
-            public void onSuccess(QuerySnapshot querySnapshot) {
-                if (querySnapshot == null || querySnapshot.isEmpty()) {
-                    handleEmptyNoteList();
+            public void onSuccess(User user) {
+                if (!isAdded() || viewBinding == null) {
+                    return;
+                }
+
+                List<String> readNotes = user == null || user.getReadedNotes() == null
+                        ? new ArrayList<>() : user.getReadedNotes();
+
+                // the listener is triggered by any change of the users, reload only if the read notes changed
+                if (readNotes.equals(readNoteIds)) {
                     return;
                 }
 
-                updateNoteList(querySnapshot);
+                readNoteIds = new ArrayList<>(readNotes);
+                resetNoteList();
+                notesFeed = NotesController.getReadNotesFeed(readNoteIds, NotesFeed.DEFAULT_PAGE_SIZE);
+                loadNextPage();
             }
 
             @Override
@@ -87,50 +115,56 @@ public class NotesFragment extends Fragment {
         });
     }
 
+    private void loadNextPage() {
+        NotesFeed feed = notesFeed;
+        feed.loadNextPage(new ControllerCallback<List<NoteDocument>, ErrorType>() {
+            @Override
+            public void onSuccess(List<NoteDocument> notes) {
+                // la lista è stata ricaricata nel frattempo, ignora questa pagina
+                if (feed != notesFeed || !isAdded() || viewBinding == null) {
+                    return;
+                }
+
+                appendNotes(notes);
+            }
+
+            @Override
+            public void onError(ErrorType errorType) {
+                if (!isAdded() || viewBinding == null) {
+                    return;
+                }
+
+                Toast.makeText(requireContext(), errorType.getMessage(requireContext()), Toast.LENGTH_SHORT).show();
+                loadingIndicator.hideLoading();
+            }
+        });
+    }
+
+    private void resetNoteList() {
+        notesAdapter.clear(); // Pulisci la lista prima di caricare la prima pagina
+        loadedNoteIds.clear();
+        notesAdapter.notifyDataSetChanged();
+        loadingIndicator.showLoading();
+    }
+
     private void handleEmptyNoteList() {
         // Mostra un messaggio se la lista è vuota
         viewBinding.textListEmpty.setVisibility(View.VISIBLE);
+        viewBinding.notesList.setVisibility(View.GONE);
         loadingIndicator.hideLoading();
     }
 
-    private void updateNoteList(QuerySnapshot querySnapshot) {
-        if (querySnapshot == null || querySnapshot.isEmpty()) {
-            // Mostra il messaggio di lista vuota se non ci sono dati
-            viewBinding.textListEmpty.setVisibility(View.VISIBLE);
-            notesAdapter.clear(); // Pulisci la lista se non ci sono più elementi
-            loadedNoteIds.clear();
-            notesAdapter.notifyDataSetChanged();
-            loadingIndicator.hideLoading();
-            viewBinding.notesList.setVisibility(View.GONE);
-            return;
-        }
-
-        // Nasconde il messaggio di lista vuota poiché ci sono dati
-        viewBinding.textListEmpty.setVisibility(View.GONE);
-        viewBinding.notesList.setVisibility(View.VISIBLE);
-
-        // Mappa temporanea per verificare quali elementi mantenere
-        Set<String> currentNoteIds = new HashSet<>();
-
-        // Aggiunge o aggiorna gli elementi
-        for (DocumentSnapshot document : querySnapshot) {
+    private void appendNotes(List<NoteDocument> notes) {
+        // Aggiunge gli elementi della pagina
+        for (NoteDocument document : notes) {
             String documentId = document.getId();
-            currentNoteIds.add(documentId);
 
             if (!loadedNoteIds.contains(documentId)) {
                 // Nuovo elemento trovato, aggiungilo all'adapter
-                String city = document.getString("city");
-                String description = document.getString("content");
-                Timestamp timestamp = (Timestamp) document.get("timestamp");
-                String formattedDate = formatTimestamp(timestamp);
-                String username = document.getString("username");
-
-                String isFor = null;
-                try {
-                    // check if is dedicated note.
-                    isFor = document.getString("send_to");
-                } catch (Exception ignore) {
-                }
+                String city = document.getCity();
+                String description = document.getContent();
+                String formattedDate = formatTimestamp(document.getTimestamp());
+                String username = document.getUsername();
 
                 if (description != null && city != null) {
                     Note noteCard = new Note(
@@ -138,10 +172,9 @@ public class NotesFragment extends Fragment {
                             description,
                             formattedDate,
                             city,
-                            username == null ? null : document.getString("userId"),
+                            username == null ? null : document.getUserId(),
                             documentId,
-                            // check if have this attribute and if is dedicated to the user.
-                            (isFor != null && isFor.compareTo(UserController.getUid()) == 0)
+                            document.isDedicatedTo(UserController.getUid())
                     );
                     notesAdapter.add(noteCard);
                     loadedNoteIds.add(documentId);
@@ -149,26 +182,30 @@ public class NotesFragment extends Fragment {
             }
         }
 
-        // Rimuove gli elementi non più presenti nel `querySnapshot`
-        Iterator<Note> iterator = notesAdapter.getItems().iterator();
-        while (iterator.hasNext()) {
-            Note item = iterator.next();
-            if (!currentNoteIds.contains(item.getId())) {
-                iterator.remove();
-                loadedNoteIds.remove(item.getId());
+        if (notesAdapter.getCount() == 0) {
+            // Una pagina può essere vuota (note eliminate): prova con la successiva
+            if (notesFeed.hasMore()) {
+                loadNextPage();
+            } else {
+                handleEmptyNoteList();
             }
+            return;
         }
 
+        // Nasconde il messaggio di lista vuota poiché ci sono dati
+        viewBinding.textListEmpty.setVisibility(View.GONE);
+        viewBinding.notesList.setVisibility(View.VISIBLE);
+
         // Notifica l'adapter per aggiornare la lista visivamente
         notesAdapter.notifyDataSetChanged();
         loadingIndicator.hideLoading();
     }
 
-    private String formatTimestamp(Timestamp timestamp) {
-        if (timestamp == null) {
+    private String formatTimestamp(long timestamp) {
+        if (timestamp == 0) {
             return "";
         }
-        Date date = timestamp.toDate();
+        Date date = new Date(timestamp);
         SimpleDateFormat dateFormatter = new SimpleDateFormat("dd/MM/yyyy", Locale.getDefault());
         return dateFormatter.format(date);
     }
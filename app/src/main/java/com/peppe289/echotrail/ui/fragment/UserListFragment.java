@@ -1,21 +1,20 @@
 package com.peppe289.echotrail.ui.fragment;
 
 import android.os.Bundle;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.fragment.app.Fragment;
-import com.google.firebase.Timestamp;
-import com.google.firebase.firestore.DocumentSnapshot;
-import com.google.firebase.firestore.QuerySnapshot;
+import com.peppe289.echotrail.model.NoteDocument;
 import com.peppe289.echotrail.R;
 import com.peppe289.echotrail.controller.callback.ControllerCallback;
-import com.peppe289.echotrail.controller.user.UserController;
+import com.peppe289.echotrail.controller.notes.NotesController;
+import com.peppe289.echotrail.controller.notes.NotesFeed;
 import com.peppe289.echotrail.databinding.FragmentNotesBinding;
 import com.peppe289.echotrail.model.Note;
 import com.peppe289.echotrail.adapter.NoteCustomAdapter;
@@ -25,12 +24,15 @@ import com.peppe289.echotrail.utils.LoadingManager;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 public class UserListFragment extends Fragment {
     private FragmentNotesBinding binding;
 
     private LoadingManager loadingManager;
+    private NoteCustomAdapter noteCustomAdapter;
+    private NotesFeed notesFeed;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -44,30 +46,52 @@ public class UserListFragment extends Fragment {
         binding = FragmentNotesBinding.bind(view);
         ListView listView = binding.notesList;
         loadingManager = new LoadingManager(binding.getRoot());
-        NoteCustomAdapter noteCustomAdapter = new NoteCustomAdapter(requireContext(), R.layout.card_item, new ArrayList<>(), null);
+        noteCustomAdapter = new NoteCustomAdapter(requireContext(), R.layout.card_item, new ArrayList<>(), null);
 
         listView.setAdapter(noteCustomAdapter);
+        listView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (notesFeed != null && totalItemCount > 0
+                        && notesFeed.shouldPrefetch(firstVisibleItem + visibleItemCount - 1, totalItemCount)) {
+                    loadNextPage();
+                }
+            }
+        });
         loadingManager.showLoading();
 
-        UserController.getUserNotesList(new ControllerCallback<QuerySnapshot, ErrorType>() {
+        notesFeed = NotesController.getUserNotesFeed(NotesFeed.DEFAULT_PAGE_SIZE);
+        loadNextPage();
+
+        return view;
+    }
+
+    private void loadNextPage() {
+        notesFeed.loadNextPage(new ControllerCallback<List<NoteDocument>, ErrorType>() {
             @Override
-            public void onSuccess(QuerySnapshot querySnapshot) {
-                if (querySnapshot == null || querySnapshot.isEmpty()) {
+            public void onSuccess(List<NoteDocument> notes) {
+                if (!isAdded()) {
+                    return;
+                }
+
+                for (NoteDocument document : notes) {
+                    String city = document.getCity();
+                    String description = document.getContent();
+                    String formattedDate = formatDate(document.getTimestamp());
+
+                    if (description != null && city != null) {
+                        Note note = new Note("La tua nota", description, formattedDate, city, null, document.getId(), false);
+                        noteCustomAdapter.add(note);
+                    }
+                }
+
+                if (noteCustomAdapter.isEmpty() && !notesFeed.hasMore()) {
                     TextView textView = binding.textListEmpty;
                     textView.setVisibility(View.VISIBLE);
-                } else {
-                    for (DocumentSnapshot document : querySnapshot) {
-                        Log.i("UserListFragment", "Document: " + document);
-                        String city = document.getString("city");
-                        String description = document.getString("content");
-                        Timestamp timestamp = (Timestamp) document.get("timestamp");
-                        String formattedDate = formatDate(timestamp);
-
-                        if (description != null && city != null) {
-                            Note note = new Note("La tua nota", description, formattedDate, city, null, document.getId(), false);
-                            noteCustomAdapter.add(note);
-                        }
-                    }
                 }
 
                 loadingManager.hideLoading();
@@ -75,19 +99,21 @@ public class UserListFragment extends Fragment {
 
             @Override
             public void onError(ErrorType errorType) {
+                if (!isAdded()) {
+                    return;
+                }
+
                 Toast.makeText(requireContext(), errorType.getMessage(requireContext()), Toast.LENGTH_SHORT).show();
                 loadingManager.hideLoading();
             }
         });
-
-        return view;
     }
 
-    private String formatDate(Timestamp timestamp) {
-        if (timestamp == null) {
+    private String formatDate(long timestamp) {
+        if (timestamp == 0) {
             return "";
         }
-        Date date = timestamp.toDate();
+        Date date = new Date(timestamp);
         SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy", Locale.getDefault());
         return dateFormat.format(date);
     }
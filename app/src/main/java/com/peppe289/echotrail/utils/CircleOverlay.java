@@ -14,6 +14,10 @@ public class CircleOverlay extends Overlay {
     private final double radiusMeters;
     private final Paint fillPaint;
     private final Paint strokePaint;
+    // riusati ad ogni frame
+    private final GeoPoint edgeGeoPoint = new GeoPoint(0.0, 0.0);
+    private final Point screenCenter = new Point();
+    private final Point screenEdge = new Point();
 
     /**
      * @param center        Il centro del cerchio (di solito la posizione del marker)
@@ -42,17 +46,15 @@ public class CircleOverlay extends Overlay {
         if (center == null) return;
 
         // Converte il centro (GeoPoint) in coordinate dello schermo
-        Point screenCenter = new Point();
         projection.toPixels(center, screenCenter);
 
         /*
-         * Per calcolare il raggio in pixel, possiamo creare un GeoPoint "offset" dal centro.
-         * Usiamo una conversione approssimativa: 1 grado di latitudine ≈ 111320 metri.
-         * Quindi, l’offset in latitudine corrispondente a "radiusMeters" è:
+         * Per calcolare il raggio in pixel, possiamo spostare un GeoPoint "offset" dal centro.
+         * L'offset in latitudine corrispondente a "radiusMeters" è lo stesso usato da GeoMath
+         * per le distanze, così il cerchio coincide con l'area in cui le note si possono leggere.
          */
-        double latOffset = radiusMeters / 111320.0;
-        GeoPoint edgeGeoPoint = new GeoPoint(center.getLatitude() + latOffset, center.getLongitude());
-        Point screenEdge = new Point();
+        double latOffset = GeoMath.metersToLatitude(radiusMeters);
+        edgeGeoPoint.setCoords(center.getLatitude() + latOffset, center.getLongitude());
         projection.toPixels(edgeGeoPoint, screenEdge);
         float radiusPx = Math.abs(screenEdge.y - screenCenter.y);
 
@@ -0,0 +1,310 @@
+package com.peppe289.echotrail.utils;
+
+import androidx.annotation.Nullable;
+
+import org.osmdroid.util.GeoPoint;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hierarchy of clusters of points, one level per zoom of the map.
+ * <p>
+ * The points are projected in Web Mercator and every level is a grid of cells {@link #RADIUS_PX}
+ * pixels wide at its zoom: the points of a cell make a cluster, so every level holds about as many
+ * clusters as fit on the map at its zoom. A cell is split in exactly four cells by the next level
+ * (a quadtree), so adding or removing a point only updates the one cell holding it at each level,
+ * whatever the number of points.
+ * </p>
+ * The engine isn't thread safe.
+ */
+public class ClusterEngine {
+    public static final int MIN_ZOOM = 6;
+    public static final int MAX_ZOOM = 25;
+
+    /**
+     * Size in pixels of the cells of a level.
+     */
+    private static final double RADIUS_PX = 60.0;
+    private static final double TILE_SIZE = 256.0;
+    /**
+     * Number of cells of {@link #MAX_ZOOM} per unit of Mercator coordinate.
+     */
+    private static final double CELLS_PER_UNIT = TILE_SIZE * Math.pow(2, MAX_ZOOM) / RADIUS_PX;
+
+    /**
+     * The weight of each point.
+     */
+    private final Map<GeoPoint, Integer> weights = new HashMap<>();
+    /**
+     * The non-empty cells of each zoom, {@code levels.get(zoom - MIN_ZOOM)}, by {@link #cellKey}.
+     */
+    private final List<Map<Long, Cell>> levels = new ArrayList<>(MAX_ZOOM - MIN_ZOOM + 1);
+
+    public ClusterEngine() {
+        for (int zoom = MIN_ZOOM; zoom <= MAX_ZOOM; zoom++)
+            levels.add(new HashMap<>());
+    }
+
+    /**
+     * A cluster of a level.
+     */
+    public static class Cluster {
+        private final GeoPoint position;
+        private final int count;
+        @Nullable
+        private final GeoPoint leaf;
+        private final int expansionZoom;
+
+        Cluster(GeoPoint position, int count, @Nullable GeoPoint leaf, int expansionZoom) {
+            this.position = position;
+            this.count = count;
+            this.leaf = leaf;
+            this.expansionZoom = expansionZoom;
+        }
+
+        public GeoPoint getPosition() {
+            return position;
+        }
+
+        /**
+         * @return the sum of the weights of the points of the cluster
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return the point passed to the engine if the cluster holds only that point, {@code null} otherwise
+         */
+        @Nullable
+        public GeoPoint getLeaf() {
+            return leaf;
+        }
+
+        /**
+         * @return the zoom at which the cluster splits in more clusters, {@code -1} for a single point
+         */
+        public int getExpansionZoom() {
+            return expansionZoom;
+        }
+    }
+
+    /**
+     * @return the zoom of the level used for the given zoom of the map
+     */
+    public static int levelFor(double zoom) {
+        return Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, (int) Math.floor(zoom)));
+    }
+
+    /**
+     * Changes the weight of a point: a point not in the engine is added, a point whose weight drops
+     * to zero is removed. Only the cell holding the point is updated at every level.
+     *
+     * @param point       the point, the same instance (or an equal one) for every change
+     * @param weightDelta the weight added to the point, negative to remove it
+     */
+    public void update(GeoPoint point, int weightDelta) {
+        Integer known = weights.get(point);
+        int previous = known != null ? known : 0;
+        int weight = Math.max(0, previous + weightDelta);
+        if (weight == previous)
+            return;
+
+        if (weight == 0)
+            weights.remove(point);
+        else
+            weights.put(point, weight);
+
+        double x = mercatorX(point.getLongitude());
+        double y = mercatorY(point.getLatitude());
+        long col = cellIndex(x);
+        long row = cellIndex(y);
+        int delta = weight - previous;
+        int points = previous == 0 ? 1 : weight == 0 ? -1 : 0;
+        for (int zoom = MAX_ZOOM; zoom >= MIN_ZOOM; zoom--) {
+            int shift = MAX_ZOOM - zoom;
+            long key = cellKey(col >> shift, row >> shift);
+            Map<Long, Cell> level = levels.get(zoom - MIN_ZOOM);
+            Cell cell = level.get(key);
+            if (cell == null) {
+                cell = new Cell(zoom == MAX_ZOOM);
+                level.put(key, cell);
+            }
+
+            cell.wx += x * delta;
+            cell.wy += y * delta;
+            cell.weight += delta;
+            cell.points += points;
+            if (cell.leaves != null && points > 0)
+                cell.leaves.add(point);
+            else if (cell.leaves != null && points < 0)
+                cell.leaves.remove(point);
+
+            if (cell.points == 0)
+                level.remove(key);
+        }
+    }
+
+    /**
+     * Removes every point.
+     */
+    public void clear() {
+        weights.clear();
+        for (Map<Long, Cell> level : levels)
+            level.clear();
+    }
+
+    /**
+     * Returns the clusters of the level of the given zoom falling in the bounding box.
+     * Boxes crossing the antimeridian ({@code west > east}) are handled as the whole longitude range.
+     */
+    public List<Cluster> getClusters(double zoom, double south, double west, double north, double east) {
+        int levelZoom = levelFor(zoom);
+        int shift = MAX_ZOOM - levelZoom;
+        Map<Long, Cell> level = levels.get(levelZoom - MIN_ZOOM);
+        if (west > east) {
+            west = -180.0;
+            east = 180.0;
+        }
+
+        long minCol = cellIndex(mercatorX(west)) >> shift;
+        long maxCol = cellIndex(mercatorX(east)) >> shift;
+        long minRow = cellIndex(mercatorY(north)) >> shift;
+        long maxRow = cellIndex(mercatorY(south)) >> shift;
+
+        List<Cluster> clusters = new ArrayList<>();
+        if ((maxCol - minCol + 1) * (maxRow - minRow + 1) <= level.size()) {
+            for (long col = minCol; col <= maxCol; col++) {
+                for (long row = minRow; row <= maxRow; row++) {
+                    Cell cell = level.get(cellKey(col, row));
+                    if (cell != null)
+                        clusters.add(toCluster(levelZoom, col, row, cell));
+                }
+            }
+        } else {
+            // zoomed out, the box has more cells than the points: scan the points instead.
+            for (Map.Entry<Long, Cell> entry : level.entrySet()) {
+                long col = entry.getKey() >> 32;
+                long row = entry.getKey() & 0xffffffffL;
+                if (col >= minCol && col <= maxCol && row >= minRow && row <= maxRow)
+                    clusters.add(toCluster(levelZoom, col, row, entry.getValue()));
+            }
+        }
+        return clusters;
+    }
+
+    private Cluster toCluster(int zoom, long col, long row, Cell cell) {
+        if (cell.points == 1) {
+            GeoPoint leaf = singlePoint(zoom, col, row);
+            return new Cluster(leaf, cell.weight, leaf, -1);
+        }
+
+        GeoPoint position = new GeoPoint(latitude(cell.wy / cell.weight), longitude(cell.wx / cell.weight));
+        return new Cluster(position, cell.weight, null, expansionZoom(zoom, col, row));
+    }
+
+    /**
+     * @return the first zoom where the points of the cell fall in more than one cell,
+     * {@link #MAX_ZOOM} if they are too close to ever split
+     */
+    private int expansionZoom(int zoom, long col, long row) {
+        for (int next = zoom + 1; next <= MAX_ZOOM; next++) {
+            long[] child = onlyChild(next, col, row);
+            if (child == null)
+                return next;
+            col = child[0];
+            row = child[1];
+        }
+        return MAX_ZOOM;
+    }
+
+    /**
+     * @return the point of a cell holding a single point, found going down its only non-empty child
+     */
+    private GeoPoint singlePoint(int zoom, long col, long row) {
+        for (int next = zoom + 1; next <= MAX_ZOOM; next++) {
+            long[] child = onlyChild(next, col, row);
+            if (child == null)
+                break;
+            col = child[0];
+            row = child[1];
+        }
+        Cell cell = levels.get(MAX_ZOOM - MIN_ZOOM).get(cellKey(col, row));
+        return cell.leaves.get(0);
+    }
+
+    /**
+     * @return the column and the row of the only non-empty cell of the given zoom inside the cell
+     * of the previous zoom, {@code null} if there is more than one
+     */
+    @Nullable
+    private long[] onlyChild(int zoom, long parentCol, long parentRow) {
+        Map<Long, Cell> level = levels.get(zoom - MIN_ZOOM);
+        long[] found = null;
+        for (long col = parentCol * 2; col <= parentCol * 2 + 1; col++) {
+            for (long row = parentRow * 2; row <= parentRow * 2 + 1; row++) {
+                if (!level.containsKey(cellKey(col, row)))
+                    continue;
+                if (found != null)
+                    return null;
+                found = new long[]{col, row};
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the index of the cell of {@link #MAX_ZOOM} holding the Mercator coordinate
+     */
+    private static long cellIndex(double coordinate) {
+        return Math.min((long) (CELLS_PER_UNIT) - 1, (long) Math.floor(coordinate * CELLS_PER_UNIT));
+    }
+
+    private static long cellKey(long col, long row) {
+        return (col << 32) | (row & 0xffffffffL);
+    }
+
+    private static double mercatorX(double longitude) {
+        return longitude / 360.0 + 0.5;
+    }
+
+    private static double mercatorY(double latitude) {
+        double sin = Math.sin(Math.toRadians(latitude));
+        double y = 0.5 - 0.25 * Math.log((1 + sin) / (1 - sin)) / Math.PI;
+        return Math.max(0.0, Math.min(1.0, y));
+    }
+
+    private static double longitude(double x) {
+        return (x - 0.5) * 360.0;
+    }
+
+    private static double latitude(double y) {
+        double y2 = Math.toRadians(180.0 - y * 360.0);
+        return 360.0 * Math.atan(Math.exp(y2)) / Math.PI - 90.0;
+    }
+
+    /**
+     * The points of a cell of a level.
+     */
+    private static class Cell {
+        /**
+         * Sums of the coordinates of the points, multiplied by their weight.
+         */
+        double wx;
+        double wy;
+        int weight;
+        int points;
+        /**
+         * The points of the cell, kept only by the cells of {@link #MAX_ZOOM}.
+         */
+        @Nullable
+        final List<GeoPoint> leaves;
+
+        Cell(boolean keepLeaves) {
+            leaves = keepLeaves ? new ArrayList<>(1) : null;
+        }
+    }
+}
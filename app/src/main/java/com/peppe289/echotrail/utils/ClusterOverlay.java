@@ -0,0 +1,173 @@
+package com.peppe289.echotrail.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Point;
+import android.view.MotionEvent;
+
+import org.osmdroid.util.GeoPoint;
+import org.osmdroid.util.TileSystem;
+import org.osmdroid.views.MapView;
+import org.osmdroid.views.Projection;
+import org.osmdroid.views.overlay.Overlay;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A single overlay drawing every cluster of the map, instead of a {@link org.osmdroid.views.overlay.Marker}
+ * per cluster.
+ * <p>
+ * The clusters are stored in primitive arrays together with their icon (see {@link MarkerIconCache})
+ * and drawn in one pass, skipping the ones off the screen; a tap is matched through a
+ * {@link SpatialIndex} of the clusters instead of asking every marker. The clusters are replaced
+ * all together by {@link #setClusters(List)}, which invalidates the map once.
+ * </p>
+ * The icons are anchored like the default markers: centered horizontally, bottom on the point.
+ */
+public class ClusterOverlay extends Overlay {
+    private static final int MIN_CAPACITY = 64;
+
+    private final Context context;
+    private final MapView mapView;
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private ClusterEngine.Cluster[] clusters = new ClusterEngine.Cluster[0];
+    private double[] latitudes = new double[0];
+    private double[] longitudes = new double[0];
+    private Bitmap[] icons = new Bitmap[0];
+    /**
+     * Position on the screen of each cluster in the last frame, {@code NaN} if it wasn't drawn.
+     */
+    private float[] screenX = new float[0];
+    private float[] screenY = new float[0];
+    private int size;
+
+    private SpatialIndex<Integer> hitIndex = new SpatialIndex<>(1);
+    private int maxIconSize;
+
+    // reused by every frame.
+    private final GeoPoint drawPoint = new GeoPoint(0.0, 0.0);
+    private final Point screenPoint = new Point();
+
+    private OnClusterClickListener listener;
+
+    public ClusterOverlay(Context context, MapView mapView) {
+        this.context = context;
+        this.mapView = mapView;
+    }
+
+    public interface OnClusterClickListener {
+        boolean onClusterClick(ClusterEngine.Cluster cluster);
+    }
+
+    public void setOnClusterClickListener(OnClusterClickListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Replaces the clusters drawn.
+     */
+    public void setClusters(List<ClusterEngine.Cluster> newClusters) {
+        int count = newClusters.size();
+        // the arrays follow what is on the screen: grow them, and give the memory back after a zoom in.
+        if (clusters.length < count || (clusters.length > MIN_CAPACITY && count < clusters.length / 4)) {
+            int capacity = clusters.length < count
+                    ? Math.max(count, clusters.length * 2)
+                    : Math.max(MIN_CAPACITY, count * 2);
+            clusters = new ClusterEngine.Cluster[capacity];
+            latitudes = new double[capacity];
+            longitudes = new double[capacity];
+            icons = new Bitmap[capacity];
+            screenX = new float[capacity];
+            screenY = new float[capacity];
+        }
+
+        maxIconSize = 1;
+        for (int i = 0; i < count; i++) {
+            ClusterEngine.Cluster cluster = newClusters.get(i);
+            clusters[i] = cluster;
+            latitudes[i] = cluster.getPosition().getLatitude();
+            longitudes[i] = cluster.getPosition().getLongitude();
+            icons[i] = MarkerIconCache.get(context, cluster.getCount()).getBitmap();
+            screenX[i] = Float.NaN;
+            screenY[i] = Float.NaN;
+            maxIconSize = Math.max(maxIconSize, Math.max(icons[i].getWidth(), icons[i].getHeight()));
+        }
+        for (int i = count; i < Math.min(size, clusters.length); i++) {
+            clusters[i] = null;
+            icons[i] = null;
+        }
+        size = count;
+
+        // cells as big as an icon at the current zoom, a tap checks only the cells around it.
+        double cellMeters = Math.max(1.0, maxIconSize * groundResolution(mapView.getMapCenter().getLatitude()));
+        hitIndex = new SpatialIndex<>(cellMeters);
+        for (int i = 0; i < count; i++)
+            hitIndex.add(clusters[i].getPosition(), i);
+
+        mapView.invalidate();
+    }
+
+    public void clear() {
+        setClusters(Collections.emptyList());
+    }
+
+    @Override
+    public void draw(Canvas canvas, Projection projection) {
+        int width = canvas.getWidth();
+        int height = canvas.getHeight();
+        for (int i = 0; i < size; i++) {
+            Bitmap icon = icons[i];
+            drawPoint.setCoords(latitudes[i], longitudes[i]);
+            projection.toPixels(drawPoint, screenPoint);
+
+            float left = screenPoint.x - icon.getWidth() / 2f;
+            float top = screenPoint.y - icon.getHeight();
+            if (left > width || top > height || left + icon.getWidth() < 0 || screenPoint.y < 0) {
+                screenX[i] = Float.NaN;
+                continue;
+            }
+
+            screenX[i] = screenPoint.x;
+            screenY[i] = screenPoint.y;
+            canvas.drawBitmap(icon, left, top, paint);
+        }
+    }
+
+    @Override
+    public boolean onSingleTapConfirmed(MotionEvent event, MapView mapView) {
+        if (size == 0 || listener == null)
+            return false;
+
+        GeoPoint tapped = (GeoPoint) mapView.getProjection().fromPixels((int) event.getX(), (int) event.getY());
+        // the point of an icon is at its bottom: look a bit below the tap.
+        double radius = maxIconSize * groundResolution(tapped.getLatitude()) * 1.5;
+
+        int hit = -1;
+        for (int i : hitIndex.findWithin(tapped, radius)) {
+            if (i >= size || Float.isNaN(screenX[i]))
+                continue;
+
+            Bitmap icon = icons[i];
+            float left = screenX[i] - icon.getWidth() / 2f;
+            float top = screenY[i] - icon.getHeight();
+            if (event.getX() >= left && event.getX() <= left + icon.getWidth()
+                    && event.getY() >= top && event.getY() <= screenY[i]) {
+                // the last drawn is the one on top.
+                hit = Math.max(hit, i);
+            }
+        }
+
+        return hit >= 0 && listener.onClusterClick(clusters[hit]);
+    }
+
+    /**
+     * @return meters per pixel at the current zoom
+     */
+    private double groundResolution(double latitude) {
+        return TileSystem.GroundResolution(latitude, mapView.getZoomLevelDouble());
+    }
+}
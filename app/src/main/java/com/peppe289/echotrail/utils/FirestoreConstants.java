@@ -99,6 +99,14 @@ public class FirestoreConstants {
          * If set to true, notes will be posted without displaying the author's name.
          */
         public static final String FIELD_PREF_ANONYMOUS = "anonymousByDefault";
+
+        /**
+         * The subcollection of a user with the pins of the notes dedicated to them.
+         * <p>
+         * Dedicated notes aren't listed in the public pins of the country, so each user
+         * downloads only the dedicated notes they can see.
+         */
+        public static final String COLLECTION_INBOX = "inbox";
     }
 
     /**
@@ -108,6 +116,27 @@ public class FirestoreConstants {
      */
     public static class Notes {
 
+        /**
+         * The document of the "notes" collection holding every note, whatever the country.
+         * <p>
+         * The notes are also copied under a document named after their country.
+         */
+        public static final String DOCUMENT_ALL = "notes";
+
+        /**
+         * The subcollection with the full notes, under {@link #DOCUMENT_ALL} or a country document.
+         */
+        public static final String COLLECTION_DATA = "data";
+
+        /**
+         * The subcollection with the pins of a country: slim copies of the notes holding only
+         * what the map needs ({@link #FIELD_USER_ID}, {@link #FIELD_COORDINATES}, {@link #FIELD_GEOHASH},
+         * {@link #FIELD_SEND_TO}, {@link #FIELD_TIMESTAMP} and {@link #FIELD_UPDATED_AT}).
+         * <p>
+         * The pin of a note has the same ID of the note and is written in the same batch.
+         */
+        public static final String COLLECTION_PINS = "pins";
+
         /**
          * The city where the note was created.
          * <p>
@@ -129,6 +158,14 @@ public class FirestoreConstants {
          */
         public static final String FIELD_COORDINATES = "coordinates";
 
+        /**
+         * The geohash of the note's coordinates.
+         * <p>
+         * Used to fetch only the notes of a given area with range queries on geohash prefixes
+         * (see {@link com.peppe289.echotrail.utils.GeoHash}).
+         */
+        public static final String FIELD_GEOHASH = "geohash";
+
         /**
          * The timestamp indicating when the note was created.
          * <p>
@@ -136,6 +173,15 @@ public class FirestoreConstants {
          */
         public static final String FIELD_TIMESTAMP = "timestamp";
 
+        /**
+         * The server time of the last write of a pin.
+         * <p>
+         * Unlike {@link #FIELD_TIMESTAMP}, set by the device when the note is written (maybe offline),
+         * this is assigned by the backend when the write is committed, so it only grows and can be used
+         * to download just the pins written after a given moment.
+         */
+        public static final String FIELD_UPDATED_AT = "updatedAt";
+
         /**
          * The unique ID of the user who created the note.
          * <p>
@@ -0,0 +1,337 @@
+package com.peppe289.echotrail.utils;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.peppe289.echotrail.adapter.SuggestionsAdapter.CityProprieties;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The places known on the device, searched by the prefix of their name without network.
+ * <p>
+ * The places are stored in a file sorted by normalized name (see {@link PlaceSearch#normalize}),
+ * mapped in memory: a table of 256 buckets by the first byte of the name leads to a range of the
+ * sorted offsets, where the first name starting with the prefix is found with a binary search.
+ * A lookup reads only the entries compared by the search and the ones it returns, without reading
+ * the file nor allocating beyond the results.
+ * </p>
+ * <p>
+ * The gazetteer learns the places returned by the remote search: they are kept in memory and
+ * merged in the file, rewritten in background, every {@link #FLUSH_THRESHOLD} places or on {@link #flush()}.
+ * Every entry stores when it was learned, the oldest are dropped past {@link #MAX_ENTRIES}.
+ * </p>
+ * File layout: {@code MAGIC, count, bucket[257], offset[count], entries}, every entry is
+ * {@code key length, key (UTF-8), name length, name (UTF-8), latitude, longitude, learned at}.
+ */
+public class Gazetteer {
+    private static final String TAG = "Gazetteer";
+
+    private static final String FILE_NAME = "gazetteer.bin";
+    private static final int MAGIC = 0x47415a32;
+    private static final int BUCKETS = 256;
+    private static final int HEADER_BYTES = 4 * (2 + BUCKETS + 1);
+
+    /**
+     * Max places kept in the file, the ones learned last are kept when exceeded.
+     */
+    private static final int MAX_ENTRIES = 20_000;
+    private static final int FLUSH_THRESHOLD = 20;
+
+    private static Gazetteer instance;
+
+    private final File file;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    /**
+     * The places learned and not yet written, by normalized name.
+     */
+    private final TreeMap<String, CityProprieties> pending = new TreeMap<>();
+    @Nullable
+    private volatile ByteBuffer mapped;
+
+    private Gazetteer(Context context) {
+        this(new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+    }
+
+    Gazetteer(File file) {
+        this.file = file;
+        executor.execute(this::map);
+    }
+
+    public static synchronized Gazetteer getInstance(Context context) {
+        if (instance == null) {
+            instance = new Gazetteer(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Finds the places whose normalized name starts with the given prefix.
+     *
+     * @param prefix     a query normalized by {@link PlaceSearch#normalize}
+     * @param maxResults max number of places returned
+     */
+    public List<CityProprieties> find(String prefix, int maxResults) {
+        if (prefix.isEmpty())
+            return Collections.emptyList();
+
+        List<CityProprieties> found = new ArrayList<>();
+        synchronized (pending) {
+            for (CityProprieties place : pending.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+                if (found.size() == maxResults)
+                    return found;
+                found.add(place);
+            }
+        }
+
+        ByteBuffer buffer = mapped;
+        if (buffer == null)
+            return found;
+
+        byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+        int bucket = key[0] & 0xff;
+        int low = buffer.getInt(4 * (2 + bucket));
+        int high = buffer.getInt(4 * (2 + bucket + 1));
+        int count = buffer.getInt(4);
+
+        // first name not less than the prefix.
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareKey(buffer, offsetOf(buffer, mid), key) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        for (int i = low; i < count && found.size() < maxResults; i++) {
+            int offset = offsetOf(buffer, i);
+            if (!startsWith(buffer, offset, key))
+                break;
+
+            CityProprieties place = readPlace(buffer, offset);
+            if (!contains(found, place))
+                found.add(place);
+        }
+        return found;
+    }
+
+    /**
+     * Adds places to the gazetteer, replacing the ones with the same name. Can be called from any thread.
+     */
+    public void learn(List<CityProprieties> places) {
+        boolean flush;
+        synchronized (pending) {
+            for (CityProprieties place : places) {
+                String key = PlaceSearch.normalize(place.name);
+                if (!key.isEmpty())
+                    pending.put(key, place);
+            }
+            flush = pending.size() >= FLUSH_THRESHOLD;
+        }
+        if (flush)
+            flush();
+    }
+
+    /**
+     * Writes in background the places learned.
+     */
+    public void flush() {
+        executor.execute(this::write);
+    }
+
+    /**
+     * Maps the file in memory, package-private for the tests.
+     */
+    void map() {
+        if (!file.exists())
+            return;
+
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            ByteBuffer buffer = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+            if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+                Log.w(TAG, "Invalid gazetteer file, ignored");
+                return;
+            }
+            // the mapping stays valid after the channel is closed.
+            mapped = buffer;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot map the gazetteer", e);
+        }
+    }
+
+    /**
+     * Merges the places learned with the ones of the file, and writes a new file.
+     * Package-private and synchronous for the tests, the app runs it on the executor.
+     */
+    void write() {
+        Map<String, CityProprieties> learned;
+        synchronized (pending) {
+            if (pending.isEmpty())
+                return;
+            learned = new HashMap<>(pending);
+        }
+
+        long now = System.currentTimeMillis();
+        Map<String, CityProprieties> places = new HashMap<>(learned);
+        Map<String, Long> learnedAt = new HashMap<>();
+        for (String key : learned.keySet())
+            learnedAt.put(key, now);
+        ByteBuffer buffer = mapped;
+        if (buffer != null) {
+            int count = buffer.getInt(4);
+            for (int i = 0; i < count; i++) {
+                int offset = offsetOf(buffer, i);
+                String key = readString(buffer, offset);
+                if (!places.containsKey(key)) {
+                    places.put(key, readPlace(buffer, offset));
+                    learnedAt.put(key, readLearnedAt(buffer, offset));
+                }
+            }
+        }
+
+        List<String> sorted = new ArrayList<>(places.keySet());
+        if (sorted.size() > MAX_ENTRIES) {
+            // drop the places learned first.
+            sorted.sort((a, b) -> Long.compare(learnedAt.get(b), learnedAt.get(a)));
+            sorted = sorted.subList(0, MAX_ENTRIES);
+        }
+        List<byte[]> keys = new ArrayList<>(sorted.size());
+        for (String key : sorted)
+            keys.add(key.getBytes(StandardCharsets.UTF_8));
+        keys.sort(Gazetteer::compareBytes);
+
+        File temporary = new File(file.getPath() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            List<byte[]> names = new ArrayList<>(keys.size());
+            int[] offsets = new int[keys.size()];
+            int offset = HEADER_BYTES + 4 * keys.size();
+            for (int i = 0; i < keys.size(); i++) {
+                CityProprieties place = places.get(new String(keys.get(i), StandardCharsets.UTF_8));
+                byte[] name = place.name.getBytes(StandardCharsets.UTF_8);
+                names.add(name);
+                offsets[i] = offset;
+                offset += 2 + keys.get(i).length + 2 + name.length + 8 + 8 + 8;
+            }
+
+            output.writeInt(MAGIC);
+            output.writeInt(keys.size());
+            // bucket b holds the names starting with the byte b, from bucket[b] to bucket[b + 1].
+            int next = 0;
+            for (int bucket = 0; bucket <= BUCKETS; bucket++) {
+                while (next < keys.size() && (keys.get(next)[0] & 0xff) < bucket)
+                    next++;
+                output.writeInt(next);
+            }
+            for (int value : offsets)
+                output.writeInt(value);
+
+            for (int i = 0; i < keys.size(); i++) {
+                String key = new String(keys.get(i), StandardCharsets.UTF_8);
+                CityProprieties place = places.get(key);
+                output.writeShort(keys.get(i).length);
+                output.write(keys.get(i));
+                output.writeShort(names.get(i).length);
+                output.write(names.get(i));
+                output.writeDouble(place.latitude);
+                output.writeDouble(place.longitude);
+                output.writeLong(learnedAt.get(key));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write the gazetteer", e);
+            //noinspection ResultOfMethodCallIgnored
+            temporary.delete();
+            return;
+        }
+
+        if (!temporary.renameTo(file)) {
+            Log.w(TAG, "Cannot replace the gazetteer");
+            return;
+        }
+        map();
+
+        synchronized (pending) {
+            for (Map.Entry<String, CityProprieties> entry : learned.entrySet())
+                pending.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static int offsetOf(ByteBuffer buffer, int index) {
+        return buffer.getInt(HEADER_BYTES + 4 * index);
+    }
+
+    private static int compareKey(ByteBuffer buffer, int offset, byte[] key) {
+        int length = buffer.getShort(offset) & 0xffff;
+        for (int i = 0; i < Math.min(length, key.length); i++) {
+            int difference = (buffer.get(offset + 2 + i) & 0xff) - (key[i] & 0xff);
+            if (difference != 0)
+                return difference;
+        }
+        return length - key.length;
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int offset, byte[] prefix) {
+        int length = buffer.getShort(offset) & 0xffff;
+        if (length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(offset + 2 + i) != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static String readString(ByteBuffer buffer, int offset) {
+        int length = buffer.getShort(offset) & 0xffff;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = buffer.get(offset + 2 + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static CityProprieties readPlace(ByteBuffer buffer, int offset) {
+        int nameOffset = offset + 2 + (buffer.getShort(offset) & 0xffff);
+        String name = readString(buffer, nameOffset);
+        int positionOffset = nameOffset + 2 + (buffer.getShort(nameOffset) & 0xffff);
+        return new CityProprieties(name, buffer.getDouble(positionOffset), buffer.getDouble(positionOffset + 8));
+    }
+
+    private static long readLearnedAt(ByteBuffer buffer, int offset) {
+        int nameOffset = offset + 2 + (buffer.getShort(offset) & 0xffff);
+        return buffer.getLong(nameOffset + 2 + (buffer.getShort(nameOffset) & 0xffff) + 8 + 8);
+    }
+
+    private static boolean contains(List<CityProprieties> places, CityProprieties place) {
+        for (CityProprieties other : places) {
+            if (other.name.equals(place.name))
+                return true;
+        }
+        return false;
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int difference = (a[i] & 0xff) - (b[i] & 0xff);
+            if (difference != 0)
+                return difference;
+        }
+        return a.length - b.length;
+    }
+}
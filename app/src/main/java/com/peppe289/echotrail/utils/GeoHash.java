@@ -0,0 +1,267 @@
+package com.peppe289.echotrail.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Utility class for encoding coordinates into geohash strings and for expanding an area
+ * (bounding box or center + radius) into the set of geohash prefixes that cover it.
+ * <p>
+ * Notes store a geohash (see {@link FirestoreConstants.Notes#FIELD_GEOHASH}) so that an area can
+ * be queried with a handful of {@code startAt(prefix)} / {@code endAt(prefix + "\\uf8ff")}
+ * range queries instead of downloading every note of the country.
+ * </p>
+ */
+public class GeoHash {
+    private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+    /**
+     * Precision used when a note is saved. 10 characters is about 1.2m x 0.6m, more than enough
+     * for any prefix we will ever query.
+     */
+    public static final int NOTE_PRECISION = 10;
+
+    /**
+     * Upper bound of range queries generated for a single area.
+     */
+    public static final int MAX_COVERING_CELLS = 12;
+
+    /**
+     * Max precision used for covering an area. Going finer than this just produces more queries.
+     */
+    private static final int MAX_COVERING_PRECISION = 9;
+
+    /**
+     * Approximate length in meters of one degree of latitude.
+     */
+    public static final double METERS_PER_DEGREE = 111320.0;
+
+    private GeoHash() {
+    }
+
+    /**
+     * Encodes the given coordinates in a geohash of the given length.
+     *
+     * @param latitude  latitude in degrees
+     * @param longitude longitude in degrees
+     * @param precision number of characters of the geohash
+     * @return the geohash string
+     */
+    public static String encode(double latitude, double longitude, int precision) {
+        double minLat = -90, maxLat = 90;
+        double minLon = -180, maxLon = 180;
+        StringBuilder hash = new StringBuilder(precision);
+        boolean evenBit = true;
+        int bit = 0;
+        int ch = 0;
+
+        while (hash.length() < precision) {
+            if (evenBit) {
+                double mid = (minLon + maxLon) / 2;
+                if (longitude >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLon = mid;
+                } else {
+                    ch = ch << 1;
+                    maxLon = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat) / 2;
+                if (latitude >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLat = mid;
+                } else {
+                    ch = ch << 1;
+                    maxLat = mid;
+                }
+            }
+            evenBit = !evenBit;
+
+            if (++bit == 5) {
+                hash.append(BASE32.charAt(ch));
+                bit = 0;
+                ch = 0;
+            }
+        }
+
+        return hash.toString();
+    }
+
+    /**
+     * Same as {@link #encode(double, double, int)} using {@link #NOTE_PRECISION}.
+     */
+    public static String encode(double latitude, double longitude) {
+        return encode(latitude, longitude, NOTE_PRECISION);
+    }
+
+    /**
+     * Decodes the area covered by a geohash (or a prefix of it).
+     *
+     * @return {@code {south, west, north, east}}
+     */
+    public static double[] bounds(String geohash) {
+        double minLat = -90, maxLat = 90;
+        double minLon = -180, maxLon = 180;
+        boolean evenBit = true;
+
+        for (int i = 0; i < geohash.length(); i++) {
+            int ch = BASE32.indexOf(geohash.charAt(i));
+            for (int bit = 4; bit >= 0; bit--) {
+                boolean set = ((ch >> bit) & 1) == 1;
+                if (evenBit) {
+                    double mid = (minLon + maxLon) / 2;
+                    if (set) minLon = mid;
+                    else maxLon = mid;
+                } else {
+                    double mid = (minLat + maxLat) / 2;
+                    if (set) minLat = mid;
+                    else maxLat = mid;
+                }
+                evenBit = !evenBit;
+            }
+        }
+
+        return new double[]{minLat, minLon, maxLat, maxLon};
+    }
+
+    /**
+     * @return height in degrees of a cell with the given precision
+     */
+    public static double cellHeight(int precision) {
+        int latBits = (precision * 5) / 2;
+        return 180.0 / (1L << latBits);
+    }
+
+    /**
+     * @return width in degrees of a cell with the given precision
+     */
+    public static double cellWidth(int precision) {
+        int lonBits = (precision * 5 + 1) / 2;
+        return 360.0 / (1L << lonBits);
+    }
+
+    /**
+     * Returns the geohash prefixes covering the given bounding box. The precision is chosen
+     * as the finest one that keeps the number of cells under {@link #MAX_COVERING_CELLS}.
+     * Boxes crossing the antimeridian ({@code west > east}) are split in two.
+     *
+     * @return a list of distinct prefixes, never empty
+     */
+    public static List<String> coveringPrefixes(double south, double west, double north, double east) {
+        south = clampLatitude(south);
+        north = clampLatitude(north);
+        if (south > north) {
+            double tmp = south;
+            south = north;
+            north = tmp;
+        }
+
+        if (west > east) {
+            Set<String> merged = new LinkedHashSet<>(coveringPrefixes(south, west, north, 180.0));
+            merged.addAll(coveringPrefixes(south, -180.0, north, east));
+            return new ArrayList<>(merged);
+        }
+
+        int precision = 1;
+        for (int p = MAX_COVERING_PRECISION; p >= 1; p--) {
+            if (cellCount(south, west, north, east, p) <= MAX_COVERING_CELLS) {
+                precision = p;
+                break;
+            }
+        }
+
+        return cells(south, west, north, east, precision);
+    }
+
+    /**
+     * Returns the geohash prefixes covering the circle with the given center and radius.
+     *
+     * @param radiusMeters radius of the area in meters
+     */
+    public static List<String> coveringPrefixes(double latitude, double longitude, double radiusMeters) {
+        double[] box = boundingBox(latitude, longitude, radiusMeters);
+        return coveringPrefixes(box[0], box[1], box[2], box[3]);
+    }
+
+    /**
+     * Expands a center + radius into a bounding box.
+     *
+     * @return {@code {south, west, north, east}}
+     */
+    public static double[] boundingBox(double latitude, double longitude, double radiusMeters) {
+        double latDelta = radiusMeters / METERS_PER_DEGREE;
+        double cos = Math.cos(Math.toRadians(latitude));
+        double lonDelta = cos < 1e-6 ? 180.0 : Math.min(180.0, radiusMeters / (METERS_PER_DEGREE * cos));
+
+        double west = longitude - lonDelta;
+        double east = longitude + lonDelta;
+        if (lonDelta >= 180.0) {
+            west = -180.0;
+            east = 180.0;
+        } else {
+            if (west < -180.0) west += 360.0;
+            if (east > 180.0) east -= 360.0;
+        }
+
+        return new double[]{
+                clampLatitude(latitude - latDelta),
+                west,
+                clampLatitude(latitude + latDelta),
+                east
+        };
+    }
+
+    /**
+     * Checks whether a point falls in the given bounding box, handling antimeridian boxes.
+     */
+    public static boolean contains(double south, double west, double north, double east,
+                                   double latitude, double longitude) {
+        if (latitude < south || latitude > north)
+            return false;
+
+        if (west <= east)
+            return longitude >= west && longitude <= east;
+
+        return longitude >= west || longitude <= east;
+    }
+
+    private static long cellCount(double south, double west, double north, double east, int precision) {
+        double h = cellHeight(precision);
+        double w = cellWidth(precision);
+        long rows = index(north, -90.0, h) - index(south, -90.0, h) + 1;
+        long cols = index(east, -180.0, w) - index(west, -180.0, w) + 1;
+        return rows * cols;
+    }
+
+    private static List<String> cells(double south, double west, double north, double east, int precision) {
+        double h = cellHeight(precision);
+        double w = cellWidth(precision);
+        long firstRow = index(south, -90.0, h);
+        long lastRow = index(north, -90.0, h);
+        long firstCol = index(west, -180.0, w);
+        long lastCol = index(east, -180.0, w);
+
+        Set<String> prefixes = new LinkedHashSet<>();
+        for (long row = firstRow; row <= lastRow; row++) {
+            double lat = -90.0 + (row + 0.5) * h;
+            for (long col = firstCol; col <= lastCol; col++) {
+                double lon = -180.0 + (col + 0.5) * w;
+                prefixes.add(encode(lat, lon, precision));
+            }
+        }
+
+        return new ArrayList<>(prefixes);
+    }
+
+    private static long index(double value, double origin, double size) {
+        long max = Math.round((origin < -90.0 ? 360.0 : 180.0) / size) - 1;
+        long idx = (long) Math.floor((value - origin) / size);
+        return Math.max(0, Math.min(max, idx));
+    }
+
+    private static double clampLatitude(double latitude) {
+        return Math.max(-90.0, Math.min(90.0, latitude));
+    }
+}
@@ -0,0 +1,164 @@
+package com.peppe289.echotrail.utils;
+
+/**
+ * Distances on the Earth computed on primitive latitudes and longitudes, without allocating.
+ * <p>
+ * The checks of the kind "is this point within r meters?" go through a {@link Fence}: the
+ * scale of the degrees around its center is computed once, so checking a point costs a few
+ * multiplications (equirectangular projection). Only the points whose approximate distance is
+ * within {@link #FAST_PATH_MARGIN} of the radius are checked again with the haversine formula,
+ * so the result is the same as {@link #distance}.
+ * </p>
+ * The distances use the radius of osmdroid, so they match {@code GeoPoint.distanceToAsDouble}.
+ */
+public final class GeoMath {
+    /**
+     * Radius of the Earth in meters, the same of {@code GeoConstants.RADIUS_EARTH_METERS}.
+     */
+    public static final double EARTH_RADIUS = 6378137.0;
+
+    /**
+     * Length in meters of a degree of a great circle.
+     */
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180.0;
+
+    /**
+     * Relative error accepted from the equirectangular projection: closer than this to the radius,
+     * the exact distance decides.
+     */
+    private static final double FAST_PATH_MARGIN = 0.01;
+
+    /**
+     * Over this radius, or this latitude, the projection error can exceed the margin and
+     * every point is checked with the exact distance.
+     */
+    private static final double FAST_PATH_MAX_RADIUS = 5_000;
+    private static final double FAST_PATH_MAX_LATITUDE = 80;
+
+    private GeoMath() {
+    }
+
+    /**
+     * @return the great circle distance in meters between two points (haversine formula)
+     */
+    public static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double sinLat = Math.sin((phi2 - phi1) / 2);
+        double sinLon = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        double h = sinLat * sinLat + Math.cos(phi1) * Math.cos(phi2) * sinLon * sinLon;
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1.0, Math.sqrt(h)));
+    }
+
+    /**
+     * @return {@code true} if the distance between the two points is less than the radius
+     */
+    public static boolean isWithin(double lat1, double lon1, double lat2, double lon2, double radiusMeters) {
+        if (radiusMeters > FAST_PATH_MAX_RADIUS || Math.abs(lat1) > FAST_PATH_MAX_LATITUDE)
+            return distance(lat1, lon1, lat2, lon2) < radiusMeters;
+
+        double kx = Math.cos(Math.toRadians(lat1)) * METERS_PER_DEGREE;
+        double dx = wrapLongitude(lon2 - lon1) * kx;
+        double dy = (lat2 - lat1) * METERS_PER_DEGREE;
+        return decide(dx * dx + dy * dy, radiusMeters, lat1, lon1, lat2, lon2);
+    }
+
+    /**
+     * @return the degrees of latitude spanned by the given meters
+     */
+    public static double metersToLatitude(double meters) {
+        return meters / METERS_PER_DEGREE;
+    }
+
+    /**
+     * A circle on the map, checking which points fall inside it.
+     * <p>
+     * A fence can be moved with {@link #set}, so the same instance serves every check.
+     * Not thread safe.
+     * </p>
+     */
+    public static final class Fence {
+        private double latitude;
+        private double longitude;
+        private double radius;
+        private boolean fastPath;
+        // pre-scaled: meters per degree of longitude at the center.
+        private double kx;
+        // fast path thresholds on the squared distance.
+        private double insideSquared;
+        private double outsideSquared;
+
+        public Fence(double latitude, double longitude, double radiusMeters) {
+            set(latitude, longitude, radiusMeters);
+        }
+
+        public void set(double latitude, double longitude, double radiusMeters) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.radius = radiusMeters;
+            this.fastPath = radiusMeters <= FAST_PATH_MAX_RADIUS && Math.abs(latitude) <= FAST_PATH_MAX_LATITUDE;
+            this.kx = Math.cos(Math.toRadians(latitude)) * METERS_PER_DEGREE;
+            double inside = radiusMeters * (1 - FAST_PATH_MARGIN);
+            double outside = radiusMeters * (1 + FAST_PATH_MARGIN);
+            this.insideSquared = inside * inside;
+            this.outsideSquared = outside * outside;
+        }
+
+        /**
+         * @return {@code true} if the point is closer than the radius to the center
+         */
+        public boolean contains(double lat, double lon) {
+            if (!fastPath)
+                return distance(latitude, longitude, lat, lon) < radius;
+
+            // a great circle is never shorter than the difference of latitude.
+            double dy = (lat - latitude) * METERS_PER_DEGREE;
+            if (dy * dy >= outsideSquared)
+                return false;
+
+            double dx = wrapLongitude(lon - longitude) * kx;
+            double squared = dx * dx + dy * dy;
+            if (squared < insideSquared)
+                return true;
+            if (squared >= outsideSquared)
+                return false;
+            return distance(latitude, longitude, lat, lon) < radius;
+        }
+
+        /**
+         * Checks a batch of points.
+         *
+         * @param latitudes  the latitudes of the points
+         * @param longitudes the longitudes of the points
+         * @param count      how many points of the arrays to check
+         * @param inside     receives the indexes of the points inside the fence, must hold {@code count} values
+         * @return the number of indexes written in {@code inside}
+         */
+        public int filter(double[] latitudes, double[] longitudes, int count, int[] inside) {
+            int found = 0;
+            for (int i = 0; i < count; i++) {
+                if (contains(latitudes[i], longitudes[i]))
+                    inside[found++] = i;
+            }
+            return found;
+        }
+    }
+
+    private static boolean decide(double squared, double radius, double lat1, double lon1, double lat2, double lon2) {
+        double inside = radius * (1 - FAST_PATH_MARGIN);
+        double outside = radius * (1 + FAST_PATH_MARGIN);
+        if (squared < inside * inside)
+            return true;
+        if (squared >= outside * outside)
+            return false;
+        return distance(lat1, lon1, lat2, lon2) < radius;
+    }
+
+    private static double wrapLongitude(double delta) {
+        if (delta > 180.0)
+            return delta - 360.0;
+        if (delta < -180.0)
+            return delta + 360.0;
+        return delta;
+    }
+}
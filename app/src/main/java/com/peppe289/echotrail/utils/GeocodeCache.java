@@ -0,0 +1,367 @@
+package com.peppe289.echotrail.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Address;
+import android.location.Geocoder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.peppe289.echotrail.utils.callback.HelperCallback;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Cache of the reverse geocoding of the positions, in memory and on disk.
+ * <p>
+ * The addresses are cached per geohash cell of {@link #CELL_PRECISION} characters (about 1.2km x 0.6km):
+ * every position of the same cell gets the same country and city, without asking the {@link Geocoder}
+ * again, also after a restart. Every cell resolved also teaches the country of the bigger cell of
+ * {@link #REGION_PRECISION} characters (about 39km x 19km) around it, unless the cells of that region
+ * were found in different countries (a border): so, without network, the country of a position is
+ * still known if the user has already been around it, with the city of the closest cell resolved.
+ * An address without city is never returned: the notes are listed by city.
+ * </p>
+ * <p>
+ * The names are the ones of the language of the app, which is also the country collection of the
+ * notes: the cache is cleared when the language changes, so the same country never gets two names.
+ * </p>
+ * <p>
+ * The {@link Geocoder} is called on a background thread, the callbacks run on the main thread.
+ * A cached result is delivered at once, on the calling thread.
+ * </p>
+ */
+public class GeocodeCache {
+    private static final String TAG = "GeocodeCache";
+
+    private static final int CELL_PRECISION = 6;
+    private static final int REGION_PRECISION = 4;
+    private static final int MEMORY_ENTRIES = 256;
+    /**
+     * Max cells kept on disk, the oldest are dropped when exceeded.
+     */
+    private static final int DISK_ENTRIES = 4096;
+
+    private static final String PREFERENCES_NAME = "geocode_cache";
+    /**
+     * The key of the language of the names stored, never a geohash cell ('l' isn't a geohash character).
+     */
+    private static final String KEY_LOCALE = "locale";
+    private static final String SEPARATOR = "\t";
+    /**
+     * Country of a region crossed by a border.
+     */
+    private static final String AMBIGUOUS = "";
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The places by language and cell (see {@link #memoryKey}).
+     */
+    private static final LruCache<String, Place> cells = new LruCache<>(MEMORY_ENTRIES);
+    /**
+     * The country of each region, filled from the disk and used only by {@link #executor}.
+     */
+    private static final Map<String, Place> regions = new HashMap<>();
+    /**
+     * The cells resolved in each region, for finding the closest city. Used only by {@link #executor}.
+     */
+    private static final Map<String, List<String>> regionCells = new HashMap<>();
+    private static SharedPreferences preferences;
+    /**
+     * The language of {@link #regions} and of the cells on disk, used only by {@link #executor}.
+     */
+    @Nullable
+    private static String loadedLocale;
+
+    private GeocodeCache() {
+    }
+
+    /**
+     * Finds the address of a position: from the cache, from the {@link Geocoder}, or, if it fails,
+     * only the country from the region around.
+     *
+     * @param callback receives the address, with country and city, {@code null} if none was found
+     */
+    public static void getAddress(Context context, double latitude, double longitude, HelperCallback<Address, ErrorType> callback) {
+        String cell = GeoHash.encode(latitude, longitude, CELL_PRECISION);
+        Locale locale = Locale.getDefault();
+        String key = memoryKey(locale, cell);
+        Place cached = cells.get(key);
+        if (cached != null) {
+            callback.onSuccess(cached.toAddress());
+            return;
+        }
+
+        Context appContext = context.getApplicationContext();
+        executor.execute(() -> {
+            load(appContext, locale);
+
+            // loaded from the disk in the meanwhile, or out of the memory cache.
+            Place place = cells.get(key) != null ? cells.get(key) : Place.parse(preferences.getString(cell, ""));
+            if (place != null) {
+                cells.put(key, place);
+                mainHandler.post(() -> callback.onSuccess(place.toAddress()));
+                return;
+            }
+
+            if (!Geocoder.isPresent()) {
+                resolveOffline(cell, latitude, longitude, callback, null);
+                return;
+            }
+
+            geocode(appContext, locale, latitude, longitude, new HelperCallback<Address, ErrorType>() {
+                @Override
+                public void onSuccess(Address address) {
+                    executor.execute(() -> {
+                        String locality = address == null ? null : localityOf(address);
+                        if (address == null || address.getCountryName() == null || locality == null) {
+                            resolveOffline(cell, latitude, longitude, callback, null);
+                            return;
+                        }
+
+                        Place place = new Place(address.getCountryName(), address.getCountryCode(), locality);
+                        // the language changed while the geocoder was running: don't mix the names.
+                        if (!locale.toLanguageTag().equals(loadedLocale)) {
+                            mainHandler.post(() -> callback.onSuccess(place.toAddress()));
+                            return;
+                        }
+                        store(locale, cell, place);
+                        mainHandler.post(() -> callback.onSuccess(place.toAddress()));
+                    });
+                }
+
+                @Override
+                public void onError(ErrorType error) {
+                    executor.execute(() -> resolveOffline(cell, latitude, longitude, callback, error));
+                }
+            });
+        });
+    }
+
+    /**
+     * Falls back to the country of the region of the cell, with the city of the closest cell resolved in it.
+     */
+    private static void resolveOffline(String cell, double latitude, double longitude,
+                                       HelperCallback<Address, ErrorType> callback, @Nullable ErrorType error) {
+        String regionKey = cell.substring(0, REGION_PRECISION);
+        Place region = regions.get(regionKey);
+        Place closest = closestCell(regionKey, latitude, longitude);
+        if (region != null && !AMBIGUOUS.equals(region.country) && closest != null) {
+            Place place = new Place(region.country, region.countryCode, closest.locality);
+            mainHandler.post(() -> callback.onSuccess(place.toAddress()));
+        } else if (error != null) {
+            mainHandler.post(() -> callback.onError(error));
+        } else {
+            mainHandler.post(() -> callback.onSuccess(null));
+        }
+    }
+
+    /**
+     * @return the cell of the region closest to the position, {@code null} if none is known
+     */
+    @Nullable
+    private static Place closestCell(String region, double latitude, double longitude) {
+        List<String> known = regionCells.get(region);
+        if (known == null)
+            return null;
+
+        Place closest = null;
+        double closestDistance = Double.MAX_VALUE;
+        for (String cell : known) {
+            Place place = Place.parse(preferences.getString(cell, ""));
+            if (place == null)
+                continue;
+
+            double[] bounds = GeoHash.bounds(cell);
+            double distance = GeoMath.distance(latitude, longitude, (bounds[0] + bounds[2]) / 2, (bounds[1] + bounds[3]) / 2);
+            if (distance < closestDistance) {
+                closest = place;
+                closestDistance = distance;
+            }
+        }
+        return closest;
+    }
+
+    /**
+     * @return the city of the address, or the nearest administrative area when it has none (like in the countryside)
+     */
+    @Nullable
+    private static String localityOf(Address address) {
+        if (address.getLocality() != null)
+            return address.getLocality();
+        if (address.getSubAdminArea() != null)
+            return address.getSubAdminArea();
+        return address.getAdminArea();
+    }
+
+    private static void geocode(Context context, Locale locale, double latitude, double longitude,
+                                HelperCallback<Address, ErrorType> callback) {
+        Geocoder geocoder = new Geocoder(context, locale);
+
+        // for android 13+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            geocoder.getFromLocation(latitude, longitude, 1, new Geocoder.GeocodeListener() {
+                @Override
+                public void onGeocode(@NonNull List<Address> addresses) {
+                    callback.onSuccess(addresses.isEmpty() ? null : addresses.get(0));
+                }
+
+                @Override
+                public void onError(@Nullable String errorMessage) {
+                    Log.w(TAG, "Reverse geocoding failed: " + errorMessage);
+                    callback.onError(ErrorType.POSITION_NOT_FOUND_ERROR);
+                }
+            });
+        } else {
+            // only for android 12 and 12L, it blocks: we are already on the executor.
+            try {
+                List<Address> addresses = geocoder.getFromLocation(latitude, longitude, 1);
+                callback.onSuccess(addresses == null || addresses.isEmpty() ? null : addresses.get(0));
+            } catch (IOException e) {
+                Log.w(TAG, "Reverse geocoding failed", e);
+                callback.onError(ErrorType.POSITION_NOT_FOUND_ERROR);
+            }
+        }
+    }
+
+    /**
+     * Reads the cells stored on disk, the first time and when the language changes: the cells
+     * stored in another language are removed.
+     */
+    private static void load(Context context, Locale locale) {
+        String tag = locale.toLanguageTag();
+        if (preferences != null && tag.equals(loadedLocale))
+            return;
+
+        if (preferences == null)
+            preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        loadedLocale = tag;
+        regions.clear();
+        regionCells.clear();
+        if (!tag.equals(preferences.getString(KEY_LOCALE, null))) {
+            preferences.edit().clear().putString(KEY_LOCALE, tag).apply();
+            return;
+        }
+
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            Place place = KEY_LOCALE.equals(entry.getKey()) ? null : Place.parse(String.valueOf(entry.getValue()));
+            if (place == null)
+                continue;
+
+            cells.put(memoryKey(locale, entry.getKey()), place);
+            learnRegion(entry.getKey(), place);
+        }
+    }
+
+    private static void store(Locale locale, String cell, Place place) {
+        cells.put(memoryKey(locale, cell), place);
+        learnRegion(cell, place);
+
+        SharedPreferences.Editor editor = preferences.edit().putString(cell, place.serialize());
+        Map<String, ?> stored = new HashMap<>(preferences.getAll());
+        stored.remove(KEY_LOCALE);
+        if (stored.size() >= DISK_ENTRIES) {
+            // drop the oldest quarter, the cache doesn't grow forever.
+            List<Map.Entry<String, ?>> entries = new ArrayList<>(stored.entrySet());
+            entries.sort((a, b) -> Long.compare(Place.timeOf(String.valueOf(a.getValue())), Place.timeOf(String.valueOf(b.getValue()))));
+            for (int i = 0; i < DISK_ENTRIES / 4; i++)
+                editor.remove(entries.get(i).getKey());
+        }
+        editor.apply();
+    }
+
+    /**
+     * @return the key of a cell in the memory cache, which may still hold the names of another language
+     */
+    private static String memoryKey(Locale locale, String cell) {
+        return locale.toLanguageTag() + SEPARATOR + cell;
+    }
+
+    private static void learnRegion(String cell, Place place) {
+        String region = cell.substring(0, REGION_PRECISION);
+        if (place.locality != null) {
+            List<String> known = regionCells.get(region);
+            if (known == null) {
+                known = new ArrayList<>();
+                regionCells.put(region, known);
+            }
+            if (!known.contains(cell))
+                known.add(cell);
+        }
+
+        Place known = regions.get(region);
+        if (known == null)
+            regions.put(region, new Place(place.country, place.countryCode, null));
+        else if (!known.country.equals(place.country))
+            regions.put(region, new Place(AMBIGUOUS, null, null));
+    }
+
+    /**
+     * What is cached of an address.
+     */
+    private static class Place {
+        final String country;
+        @Nullable
+        final String countryCode;
+        @Nullable
+        final String locality;
+
+        Place(String country, @Nullable String countryCode, @Nullable String locality) {
+            this.country = country;
+            this.countryCode = countryCode;
+            this.locality = locality;
+        }
+
+        Address toAddress() {
+            Address address = new Address(Locale.getDefault());
+            address.setCountryName(country);
+            address.setCountryCode(countryCode);
+            address.setLocality(locality);
+            return address;
+        }
+
+        /**
+         * @return time of storing, country, country code and locality separated by tabs
+         */
+        String serialize() {
+            return System.currentTimeMillis() + SEPARATOR + country
+                    + SEPARATOR + (countryCode != null ? countryCode : "")
+                    + SEPARATOR + (locality != null ? locality : "");
+        }
+
+        @Nullable
+        static Place parse(String value) {
+            String[] fields = value.split(SEPARATOR, -1);
+            // the cells stored without city are resolved again.
+            if (fields.length != 4 || fields[1].isEmpty() || fields[3].isEmpty())
+                return null;
+
+            return new Place(fields[1],
+                    fields[2].isEmpty() ? null : fields[2],
+                    fields[3].isEmpty() ? null : fields[3]);
+        }
+
+        static long timeOf(String value) {
+            try {
+                return Long.parseLong(value.substring(0, value.indexOf(SEPARATOR)));
+            } catch (RuntimeException e) {
+                return 0;
+            }
+        }
+    }
+}
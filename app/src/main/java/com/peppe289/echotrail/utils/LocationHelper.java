@@ -1,21 +1,24 @@
 package com.peppe289.echotrail.utils;
 
 import android.Manifest;
+import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.location.Address;
 import android.location.Geocoder;
-import android.location.LocationListener;
-import android.location.LocationManager;
-import android.os.Build;
-import android.util.Log;
+import android.location.Location;
+import android.os.Looper;
+import android.os.SystemClock;
 
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.core.app.ActivityCompat;
 
 import com.google.android.gms.location.FusedLocationProviderClient;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationResult;
 import com.google.android.gms.location.LocationServices;
 import com.google.android.gms.location.Priority;
 
@@ -23,13 +26,10 @@ import com.peppe289.echotrail.controller.callback.LocationCallback;
 import com.peppe289.echotrail.utils.callback.HelperCallback;
 import org.osmdroid.util.GeoPoint;
 
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
-import java.util.concurrent.CountDownLatch;
-
-import static android.content.Context.LOCATION_SERVICE;
+import java.util.Map;
 
 /**
  * A utility class for handling location-related functionalities in Android.
@@ -45,12 +45,73 @@ import static android.content.Context.LOCATION_SERVICE;
  *     <li>Fetches the user's last known location with error handling.</li>
  *     <li>Supports conversion of geographic coordinates to human-readable city names using {@link Geocoder}.</li>
  *     <li>Provides a callback interface for location updates and errors.</li>
+ *     <li>Shares a single stream of location updates between all its consumers (see {@link #startLocationUpdates}).</li>
  * </ul>
  * </p>
+ * <p>
+ * The location updates are requested once for the whole app, and every fix is handed out to all the
+ * consumers registered. The interval and the accuracy of the request follow the movement of the user
+ * and the distance from the nearest note: close to a note the position is sampled often and with the
+ * GPS, far from every note it is sampled rarely, with the network, and batched. The updates stop as
+ * soon as the last consumer is removed.
+ * </p>
  */
 public class LocationHelper {
+    /**
+     * Distance in meters from a note under which the position is sampled at the fastest rate:
+     * a bit more than the distance at which a note can be read.
+     */
+    private static final double NEAR_NOTE_DISTANCE = 150;
+    /**
+     * Distance in meters from the nearest note over which the network position is enough.
+     */
+    private static final double FAR_NOTE_DISTANCE = 1000;
+    private static final long MIN_INTERVAL_MS = 2_000;
+    private static final long MAX_INTERVAL_MS = 60_000;
+    /**
+     * Minimum interval while the user stands still.
+     */
+    private static final long STATIONARY_INTERVAL_MS = 15_000;
+    /**
+     * Speed in m/s used when the user is slower than walking, so the time needed to reach
+     * a note is never overestimated.
+     */
+    private static final float WALKING_SPEED = 1.4f;
+    private static final float STATIONARY_SPEED = 0.5f;
+    /**
+     * Age under which the shared fix is returned by {@link #getCurrentLocation} instead of asking a new one.
+     */
+    private static final long FRESH_FIX_MS = 10_000;
+
     private final FusedLocationProviderClient fusedLocationClient;
 
+    // shared by every instance, accessed only from the main thread.
+    private static final Map<LocationCallback<GeoPoint, ErrorType>, NotesDistance> consumers = new LinkedHashMap<>();
+    private static FusedLocationProviderClient updatesClient;
+    @Nullable
+    private static Location lastFix;
+    private static long lastFixElapsedMs;
+    private static long requestedIntervalMs;
+    private static int requestedPriority;
+    private static final com.google.android.gms.location.LocationCallback updatesCallback = new com.google.android.gms.location.LocationCallback() {
+        @Override
+        public void onLocationResult(@NonNull LocationResult result) {
+            Location location = result.getLastLocation();
+            if (location != null)
+                onLocationUpdate(location);
+        }
+    };
+
+    /**
+     * Tells how far the user is from the notes, to adapt the frequency of the location updates.
+     */
+    public interface NotesDistance {
+        /**
+         * @return the distance in meters from the point to the nearest note, {@link Double#POSITIVE_INFINITY} if none is known
+         */
+        double distanceToNearestNote(GeoPoint point);
+    }
+
     /**
      * Constructs a new {@link LocationHelper} instance.
      *
@@ -63,8 +124,9 @@ public class LocationHelper {
     /**
      * Converts geographic coordinates (latitude and longitude) into a human-readable city name.
      * <p>
-     * This method uses the {@link Geocoder} class to fetch address information for the provided
-     * coordinates. If no city name is found, or if an error occurs, it returns {@code null}.
+     * The address comes from {@link GeocodeCache}: positions close to an already resolved one are
+     * answered without the {@link Geocoder}, and without network only the country may be found.
+     * If no address is found the callback receives {@code null}.
      * </p>
      *
      * @param context   the application context for accessing system services
@@ -73,36 +135,7 @@ public class LocationHelper {
      * @param callback  the callback to handle the city name or error
      */
     public static void getCityName(Context context, double latitude, double longitude, HelperCallback<Address, ErrorType> callback) {
-        Geocoder geocoder = new Geocoder(context, Locale.getDefault());
-
-        List<Address> addresses = null;
-        // for android 13+
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-            // idk why but seems this is needed
-            geocoder.getFromLocation(latitude, longitude, 1, new Geocoder.GeocodeListener() {
-                @Override
-                public void onGeocode(@NonNull List<Address> addresses) {
-                    try {
-                        callback.onSuccess(addresses.get(0));
-                    } catch (Exception e) {
-                        callback.onSuccess(null);
-                    }
-                }
-            });
-        } else {
-            // only for android 12 and 12L
-            try {
-                addresses = geocoder.getFromLocation(latitude, longitude, 1);
-            } catch (IOException e) {
-                callback.onError(ErrorType.POSITION_NOT_FOUND_ERROR);
-            }
-
-            if (addresses != null && !addresses.isEmpty()) {
-                callback.onSuccess(addresses.get(0));
-            } else {
-                callback.onSuccess(null);
-            }
-        }
+        GeocodeCache.getAddress(context, latitude, longitude, callback);
     }
 
     /**
@@ -139,6 +172,15 @@ public class LocationHelper {
             return;
         }
 
+        // the updates already running give a recent position, no need to turn on the GPS again.
+        if (lastFix != null && !consumers.isEmpty() && SystemClock.elapsedRealtime() - lastFixElapsedMs < FRESH_FIX_MS) {
+            if (lastFix.isMock())
+                locationCallback.onError(ErrorType.POSITION_MOCK_ERROR);
+            else
+                locationCallback.onSuccess(new GeoPoint(lastFix.getLatitude(), lastFix.getLongitude()));
+            return;
+        }
+
         fusedLocationClient.getCurrentLocation(Priority.PRIORITY_HIGH_ACCURACY, null).addOnSuccessListener(activity, location -> {
             if (location != null && location.isMock()) {
                 locationCallback.onError(ErrorType.POSITION_MOCK_ERROR);
@@ -150,4 +192,135 @@ public class LocationHelper {
             }
         }).addOnFailureListener(e -> locationCallback.onError(ErrorType.UNKNOWN_ERROR));
     }
+
+    /**
+     * Registers a consumer of the shared location updates, starting them if it is the first one.
+     * <p>
+     * The consumer receives every fix on the main thread, starting from the last one if it is recent,
+     * until {@link #stopLocationUpdates} is called: remember to remove it when the position isn't shown.
+     * </p>
+     *
+     * @param context       the context for the permission check
+     * @param consumer      the callback receiving the positions, or the errors
+     * @param notesDistance the distance of the notes the consumer cares about, {@code null} if it doesn't know them
+     */
+    @SuppressLint("MissingPermission")
+    public void startLocationUpdates(Context context, @NonNull LocationCallback<GeoPoint, ErrorType> consumer,
+                                     @Nullable NotesDistance notesDistance) {
+        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            consumer.onError(ErrorType.POSITION_PERMISSION_ERROR);
+            return;
+        }
+
+        boolean first = consumers.isEmpty();
+        consumers.put(consumer, notesDistance);
+        if (lastFix != null && SystemClock.elapsedRealtime() - lastFixElapsedMs < FRESH_FIX_MS)
+            deliver(consumer, lastFix);
+
+        if (first) {
+            // static: it must not keep the activity alive.
+            updatesClient = LocationServices.getFusedLocationProviderClient(context.getApplicationContext());
+            requestUpdates(MIN_INTERVAL_MS, Priority.PRIORITY_HIGH_ACCURACY);
+        }
+    }
+
+    /**
+     * Removes a consumer of the location updates, stopping them if it was the last one.
+     */
+    public void stopLocationUpdates(@NonNull LocationCallback<GeoPoint, ErrorType> consumer) {
+        if (consumers.remove(consumer) == null || !consumers.isEmpty())
+            return;
+
+        updatesClient.removeLocationUpdates(updatesCallback);
+        updatesClient = null;
+        requestedIntervalMs = 0;
+    }
+
+    private static void onLocationUpdate(Location location) {
+        Location previous = lastFix;
+        lastFix = location;
+        lastFixElapsedMs = SystemClock.elapsedRealtime();
+
+        // copy: a consumer may remove itself while being notified.
+        for (LocationCallback<GeoPoint, ErrorType> consumer : new ArrayList<>(consumers.keySet()))
+            deliver(consumer, location);
+
+        if (updatesClient != null)
+            adaptUpdates(previous, location);
+    }
+
+    private static void deliver(LocationCallback<GeoPoint, ErrorType> consumer, Location location) {
+        if (location.isMock())
+            consumer.onError(ErrorType.POSITION_MOCK_ERROR);
+        else
+            consumer.onSuccess(new GeoPoint(location.getLatitude(), location.getLongitude()));
+    }
+
+    /**
+     * Picks the interval and the accuracy of the updates for the last fix, and requests them again
+     * if they changed enough.
+     * <p>
+     * The position is sampled twice in the time the user needs to reach the nearest note at their
+     * speed, so it is accurate when the note can be read and idle the rest of the time.
+     * </p>
+     */
+    private static void adaptUpdates(@Nullable Location previous, Location location) {
+        GeoPoint point = new GeoPoint(location.getLatitude(), location.getLongitude());
+        double distance = Double.POSITIVE_INFINITY;
+        for (NotesDistance notesDistance : consumers.values()) {
+            if (notesDistance != null)
+                distance = Math.min(distance, notesDistance.distanceToNearestNote(point));
+        }
+
+        float speed = speedOf(previous, location);
+        long interval;
+        if (distance <= NEAR_NOTE_DISTANCE) {
+            interval = MIN_INTERVAL_MS;
+        } else {
+            double secondsToNote = (distance - NEAR_NOTE_DISTANCE) / Math.max(speed, WALKING_SPEED);
+            interval = (long) Math.max(MIN_INTERVAL_MS, Math.min(MAX_INTERVAL_MS, secondsToNote * 1000 / 2));
+        }
+        if (speed < STATIONARY_SPEED)
+            interval = Math.max(interval, STATIONARY_INTERVAL_MS);
+
+        int priority = distance > FAR_NOTE_DISTANCE
+                ? Priority.PRIORITY_BALANCED_POWER_ACCURACY
+                : Priority.PRIORITY_HIGH_ACCURACY;
+
+        // small changes aren't worth a new request to the provider.
+        boolean intervalChanged = interval * 2 <= requestedIntervalMs || interval >= requestedIntervalMs * 2;
+        if (intervalChanged || priority != requestedPriority)
+            requestUpdates(interval, priority);
+    }
+
+    /**
+     * @return the speed in m/s given by the provider, or measured between the two fixes
+     */
+    private static float speedOf(@Nullable Location previous, Location location) {
+        if (location.hasSpeed())
+            return location.getSpeed();
+        if (previous == null)
+            return 0;
+
+        long elapsedNanos = location.getElapsedRealtimeNanos() - previous.getElapsedRealtimeNanos();
+        if (elapsedNanos <= 0)
+            return 0;
+        return previous.distanceTo(location) / (elapsedNanos / 1e9f);
+    }
+
+    @SuppressLint("MissingPermission")
+    private static void requestUpdates(long intervalMs, int priority) {
+        requestedIntervalMs = intervalMs;
+        requestedPriority = priority;
+
+        boolean near = priority == Priority.PRIORITY_HIGH_ACCURACY && intervalMs == MIN_INTERVAL_MS;
+        LocationRequest request = new LocationRequest.Builder(priority, intervalMs)
+                .setMinUpdateIntervalMillis(MIN_INTERVAL_MS)
+                .setMinUpdateDistanceMeters(near ? 2 : 10)
+                // far from the notes the fixes can be delivered in batches, waking up the app less.
+                .setMaxUpdateDelayMillis(near ? 0 : intervalMs * 2)
+                .build();
+        // the same callback replaces the previous request.
+        updatesClient.requestLocationUpdates(request, updatesCallback, Looper.getMainLooper());
+    }
 }
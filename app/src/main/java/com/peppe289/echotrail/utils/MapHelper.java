@@ -1,39 +1,29 @@
 package com.peppe289.echotrail.utils;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
-import android.view.LayoutInflater;
-import android.view.View;
-import android.widget.TextView;
-
-import androidx.annotation.NonNull;
 
 import com.google.android.gms.maps.model.BitmapDescriptor;
 import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.peppe289.echotrail.R;
 
-import org.json.JSONException;
-import org.osmdroid.config.Configuration;
+import org.osmdroid.events.DelayedMapListener;
+import org.osmdroid.events.MapListener;
+import org.osmdroid.events.ScrollEvent;
+import org.osmdroid.events.ZoomEvent;
 import org.osmdroid.tileprovider.tilesource.TileSourceFactory;
+import org.osmdroid.util.BoundingBox;
 import org.osmdroid.util.GeoPoint;
 import org.osmdroid.views.MapView;
 import org.osmdroid.views.overlay.Marker;
-import org.osmdroid.views.overlay.Overlay;
 
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-
-import okhttp3.Call;
-import okhttp3.Callback;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * A utility class for managing and customizing a {@link MapView} instance using the OSMdroid library.
@@ -50,6 +40,8 @@ import okhttp3.Response;
  *     <li>Setting the map center to a specific geographic location.</li>
  *     <li>Adding markers dynamically to the map, with clustering functionality for markers
  *     close to each other.</li>
+ *     <li>Clusters of the markers for every zoom level (see {@link ClusterEngine}), only the ones
+ *     of the visible area are rendered.</li>
  *     <li>Custom marker icons with dynamic content (e.g., displaying a number).</li>
  *     <li>Support for default map centering and custom overlays.</li>
  * </ul>
@@ -59,10 +51,68 @@ public class MapHelper {
     private CircleOverlay circleOverlay;
     private final MapView mapView;
     private final HashMap<GeoPoint, List<String>> markerCounts;
+    /**
+     * The cluster (key of {@code markerCounts}) where each note has been placed.
+     */
+    private final HashMap<String, GeoPoint> noteClusters;
+    /**
+     * The clusters indexed by position, for finding the cluster of a new note.
+     */
+    private final SpatialIndex<GeoPoint> clusterIndex;
+    /**
+     * The clusters indexed by position, for finding the clusters close to the user.
+     */
+    private final SpatialIndex<GeoPoint> nearbyIndex;
     private Marker marker;
     private Context context;
-    private static final OkHttpClient client = new OkHttpClient();
     private static final int maxDistance = 100;
+    /**
+     * Distance in meters within which the notes are merged in the same cluster.
+     */
+    private static final int clusterDistance = 3;
+    /**
+     * Max distance in meters of the search of the nearest note: farther notes give the slowest location updates anyway.
+     */
+    private static final int nearestNoteSearchDistance = 2000;
+    /**
+     * Delay used to group the changes of the notes and of the viewport before rendering the clusters.
+     */
+    private static final long RENDER_DELAY_MS = 50;
+    /**
+     * Fraction of the viewport size added on each side of the area rendered.
+     */
+    private static final double RENDER_MARGIN = 0.5;
+    /**
+     * Builds the clusters and selects the ones to render, off the main thread. A single thread
+     * shared by every map, so the renders run in the order they are requested.
+     */
+    private static final ExecutorService clusterExecutor = Executors.newSingleThreadExecutor();
+    /**
+     * The clusters of every zoom level, updated with the changes of the notes.
+     * Used only by {@link #clusterExecutor}.
+     */
+    private final ClusterEngine clusterEngine = new ClusterEngine();
+    /**
+     * The changes of the weights of the clusters not yet applied to {@link #clusterEngine}.
+     */
+    private List<WeightChange> pendingChanges = new ArrayList<>();
+    /**
+     * Incremented by every render request, the results of the older ones are dropped.
+     */
+    private int renderGeneration;
+    /**
+     * Draws the clusters rendered for the current zoom level, all in a single overlay.
+     */
+    private ClusterOverlay clusterOverlay;
+    private int renderedZoom = -1;
+    private BoundingBox renderedArea;
+    private OnMarkerClickListener clickListener;
+    private MapListener viewportListener;
+    private final Runnable renderRunnable = this::renderClusters;
+    /**
+     * Delay used to group scroll and zoom events before notifying a viewport change.
+     */
+    private static final long VIEWPORT_CHANGE_DELAY_MS = 500;
 
     /**
      * Constructs a new instance of the {@link MapHelper} class.
@@ -73,6 +123,9 @@ public class MapHelper {
         this.mapView = mapView;
         this.marker = null;
         this.markerCounts = new HashMap<>();
+        this.noteClusters = new HashMap<>();
+        this.clusterIndex = new SpatialIndex<>(clusterDistance);
+        this.nearbyIndex = new SpatialIndex<>(maxDistance);
     }
 
     /**
@@ -82,14 +135,37 @@ public class MapHelper {
      * @param context the application context, used for configuration
      */
     public void initializeMap(Context context) {
-        Configuration.getInstance().setUserAgentValue(context.getPackageName());
+        TileCache.configure(context);
 
         this.context = context;
         mapView.setTileSource(TileSourceFactory.OpenTopo);
         mapView.setMultiTouchControls(true);
         mapView.getController().setZoom(15.0);
-        mapView.setMinZoomLevel(6.0);
-        mapView.setMaxZoomLevel(25.0);
+        mapView.setMinZoomLevel((double) ClusterEngine.MIN_ZOOM);
+        mapView.setMaxZoomLevel((double) ClusterEngine.MAX_ZOOM);
+
+        clusterOverlay = new ClusterOverlay(context, mapView);
+        clusterOverlay.setOnClusterClickListener(this::onClusterClick);
+        mapView.getOverlays().add(clusterOverlay);
+
+        // swap the level of clusters when the zoom changes, and render the new area when scrolling.
+        mapView.addMapListener(new MapListener() {
+            @Override
+            public boolean onScroll(ScrollEvent event) {
+                if (renderedArea == null || !contains(renderedArea, mapView.getBoundingBox()))
+                    scheduleRender();
+                return false;
+            }
+
+            @Override
+            public boolean onZoom(ZoomEvent event) {
+                // zooming out in the same level can show more than the area rendered.
+                if (ClusterEngine.levelFor(mapView.getZoomLevelDouble()) != renderedZoom
+                        || renderedArea == null || !contains(renderedArea, mapView.getBoundingBox()))
+                    scheduleRender();
+                return false;
+            }
+        });
     }
 
     /**
@@ -100,6 +176,9 @@ public class MapHelper {
      */
     public void setMapCenter(GeoPoint point, boolean setView) {
         if (mapView != null) {
+            // the neighbourhood of the user is kept in the tile cache, to show it offline.
+            TileCache.prefetchAround(mapView, point);
+
             if (setView) {
                 mapView.getController().animateTo(point);
                 mapView.getController().setZoom(20.0);
@@ -141,12 +220,79 @@ public class MapHelper {
         }
     }
 
+    /**
+     * Registers a listener notified with the visible area when the user stops moving or zooming the map.
+     *
+     * @param listener the listener to notify
+     */
+    public void setOnViewportChangedListener(OnViewportChangedListener listener) {
+        if (mapView == null)
+            return;
+
+        // only one listener at a time, the fragment sets it again every time the notes are fetched.
+        if (viewportListener != null)
+            mapView.removeMapListener(viewportListener);
+
+        viewportListener = new DelayedMapListener(new MapListener() {
+            @Override
+            public boolean onScroll(ScrollEvent event) {
+                listener.onViewportChanged(mapView.getBoundingBox());
+                return false;
+            }
+
+            @Override
+            public boolean onZoom(ZoomEvent event) {
+                listener.onViewportChanged(mapView.getBoundingBox());
+                return false;
+            }
+        }, VIEWPORT_CHANGE_DELAY_MS);
+        mapView.addMapListener(viewportListener);
+    }
+
+    public interface OnViewportChangedListener {
+        void onViewportChanged(BoundingBox viewport);
+    }
+
     /***
-     * This call back should be have list of all notes and GeoPoint for actual note.
-     * This can be usefully used to show all notes in default range.
+     * This call back receives the GeoPoint of the cluster clicked, the notes around it can be
+     * retrieved with {@link #getClustersNear}.
      */
     public interface OnMarkerClickListener {
-        boolean onMarkerClick(HashMap<GeoPoint, List<String>> markerCounts, GeoPoint point);
+        boolean onMarkerClick(GeoPoint point);
+    }
+
+    /**
+     * Returns the clusters within the given distance from a point, using the spatial index
+     * instead of checking every cluster of the map.
+     *
+     * @param point          the center of the search
+     * @param markerDistance the distance threshold to use
+     * @return the notes of each cluster found, keyed by the position of the cluster
+     */
+    public Map<GeoPoint, List<String>> getClustersNear(GeoPoint point, MarkerDistance markerDistance) {
+        SpatialIndex<GeoPoint> index = markerDistance == MarkerDistance.TOO_CLOSE ? clusterIndex : nearbyIndex;
+        Map<GeoPoint, List<String>> clusters = new HashMap<>();
+        for (GeoPoint clusterPoint : index.findWithin(point, distanceOf(markerDistance))) {
+            List<String> notesID = markerCounts.get(clusterPoint);
+            if (notesID != null)
+                clusters.put(clusterPoint, new ArrayList<>(notesID));
+        }
+        return clusters;
+    }
+
+    /**
+     * @return the distance in meters from the point to the closest note on the map,
+     * {@link Double#POSITIVE_INFINITY} if none is within {@link #nearestNoteSearchDistance}
+     */
+    public double distanceToNearestNote(GeoPoint point) {
+        // the radius doubles, so the cells checked stay few when a note is close.
+        for (double radius = maxDistance; ; radius = Math.min(radius * 2, nearestNoteSearchDistance)) {
+            GeoPoint nearest = nearbyIndex.findNearest(point, radius);
+            if (nearest != null)
+                return point.distanceToAsDouble(nearest);
+            if (radius >= nearestNoteSearchDistance)
+                return Double.POSITIVE_INFINITY;
+        }
     }
 
     /**
@@ -161,13 +307,11 @@ public class MapHelper {
      */
     public void addMarker(GeoPoint point, String noteID, OnMarkerClickListener callback) {
         if (mapView != null) {
-            GeoPoint matchedPoint = null;
-            for (GeoPoint existingPoint : markerCounts.keySet()) {
-                if (arePointsClose(existingPoint, point)) {
-                    matchedPoint = existingPoint;
-                    break;
-                }
-            }
+            if (noteClusters.containsKey(noteID))
+                return;
+
+            clickListener = callback;
+            GeoPoint matchedPoint = clusterIndex.findNearest(point, clusterDistance);
 
             if (matchedPoint != null) {
                 // here should not be never null
@@ -177,95 +321,194 @@ public class MapHelper {
                 if (notesID.contains(noteID))
                     return;
 
-                int count = Objects.requireNonNull(notesID).size() + 1;
-                notesID.add(noteID);
-                markerCounts.put(matchedPoint, notesID);
-
-                updateMarkerIcon(matchedPoint, count);
+                Objects.requireNonNull(notesID).add(noteID);
+                noteClusters.put(noteID, matchedPoint);
+                onClustersChanged(matchedPoint, 1);
             } else {
-                Marker newMarker = new Marker(mapView);
-                newMarker.setPosition(point);
-                newMarker.setOnMarkerClickListener((marker, mapView) -> callback.onMarkerClick(markerCounts, point));
-                newMarker.setIcon(createMarkerWithNumber(1));
-                mapView.getOverlays().add(newMarker);
                 List<String> notesID = new ArrayList<>();
                 notesID.add(noteID);
                 markerCounts.put(point, notesID);
+                noteClusters.put(noteID, point);
+                clusterIndex.add(point, point);
+                nearbyIndex.add(point, point);
+                onClustersChanged(point, 1);
             }
-            mapView.invalidate();
         }
     }
 
     /**
-     * Updates the icon of an existing marker to display a count of markers at its location.
+     * Removes a note from the map. The marker of its cluster is removed when the cluster
+     * becomes empty, otherwise only its counter is updated.
      *
-     * @param point the {@link GeoPoint} of the marker to update
-     * @param count the number to display on the marker
-     */
-    private void updateMarkerIcon(GeoPoint point, int count) {
-        for (Overlay overlay : mapView.getOverlays()) {
-            if (overlay instanceof Marker) {
-                Marker marker = (Marker) overlay;
-                if (arePointsClose(marker.getPosition(), point)) {
-                    marker.setIcon(createMarkerWithNumber(count));
-                }
-            }
+     * @param noteID the ID of the note to remove
+     */
+    public void removeMarker(String noteID) {
+        if (mapView == null)
+            return;
+
+        GeoPoint clusterPoint = noteClusters.remove(noteID);
+        if (clusterPoint == null)
+            return;
+
+        List<String> notesID = markerCounts.get(clusterPoint);
+        if (notesID == null)
+            return;
+
+        notesID.remove(noteID);
+        onClustersChanged(clusterPoint, -1);
+        if (notesID.isEmpty()) {
+            markerCounts.remove(clusterPoint);
+            clusterIndex.remove(clusterPoint, clusterPoint);
+            nearbyIndex.remove(clusterPoint, clusterPoint);
         }
     }
 
-    public static void fetchSuggestions(String query, OnFetchSuggestions callback) {
-        String url = "https://nominatim.openstreetmap.org/search?q=" + query + "&format=json&addressdetails=1";
+    /**
+     * Moves a note already on the map to a new position.
+     *
+     * @param point    the new position of the note
+     * @param noteID   the ID of the note to move
+     * @param callback the callback to be invoked when the marker is clicked.
+     */
+    public void moveMarker(GeoPoint point, String noteID, OnMarkerClickListener callback) {
+        GeoPoint clusterPoint = noteClusters.get(noteID);
+        if (clusterPoint != null && arePointsClose(clusterPoint, point))
+            return;
 
-        Request request = new Request.Builder().url(url)
-                .header("User-Agent", "EchoTrailApp/1.0 ()").build();
+        removeMarker(noteID);
+        addMarker(point, noteID, callback);
+    }
 
-        client.newCall(request).enqueue(new Callback() {
-            @Override
-            public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                callback.onErrorMessage(ErrorType.UNKNOWN_ERROR);
-            }
+    /**
+     * Queues the change of the weight of a cluster for the next render. The map is rendered again
+     * only if the change is in the area rendered: the notes elsewhere stay as data until the user
+     * moves there.
+     */
+    private void onClustersChanged(GeoPoint point, int weightDelta) {
+        pendingChanges.add(new WeightChange(point, weightDelta));
+        if (renderedArea == null || renderedArea.contains(point))
+            scheduleRender();
+    }
 
-            @Override
-            public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-                if (response.isSuccessful()) {
-                    String responseBody = response.body() == null ? "" : response.body().string();
-                    try {
-                        callback.onFetchSuggestions(responseBody);
-                    } catch (Exception e) {
-                        callback.onErrorMessage(ErrorType.UNKNOWN_ERROR);
-                    }
-                }
-            }
+    private void scheduleRender() {
+        mapView.removeCallbacks(renderRunnable);
+        mapView.postDelayed(renderRunnable, RENDER_DELAY_MS);
+    }
+
+    /**
+     * Replaces the markers on the map with the clusters of the current zoom level falling in the
+     * viewport plus {@link #RENDER_MARGIN}, so the markers are bounded by what fits on the screen.
+     */
+    private void renderClusters() {
+        if (context == null)
+            return;
+
+        if (!mapView.isLayoutOccurred()) {
+            mapView.addOnFirstLayoutListener((v, left, top, right, bottom) -> scheduleRender());
+            return;
+        }
+
+        // the worker gets only the changes since the last render, the notes keep changing on this thread.
+        List<WeightChange> changes = pendingChanges;
+        pendingChanges = new ArrayList<>();
+
+        BoundingBox viewport = mapView.getBoundingBox();
+        double latMargin = viewport.getLatitudeSpan() * RENDER_MARGIN;
+        double lonMargin = viewport.getLongitudeSpanWithDateLine() * RENDER_MARGIN;
+        BoundingBox area = new BoundingBox(
+                Math.min(90.0, viewport.getLatNorth() + latMargin),
+                Math.min(180.0, viewport.getLonEast() + lonMargin),
+                Math.max(-90.0, viewport.getLatSouth() - latMargin),
+                Math.max(-180.0, viewport.getLonWest() - lonMargin));
+
+        double zoom = mapView.getZoomLevelDouble();
+        int generation = ++renderGeneration;
+        clusterExecutor.execute(() -> {
+            for (WeightChange change : changes)
+                clusterEngine.update(change.point, change.weightDelta);
+
+            RenderModel model = new RenderModel(ClusterEngine.levelFor(zoom), area,
+                    clusterEngine.getClusters(zoom, area.getLatSouth(), area.getLonWest(),
+                            area.getLatNorth(), area.getLonEast()));
+            mapView.post(() -> commitRender(model, generation));
         });
     }
 
-    public interface OnFetchSuggestions {
-        void onFetchSuggestions(String responseBody) throws JSONException;
-        void onErrorMessage(ErrorType errorType);
+    /**
+     * Shows a render model on the map, unless a newer render was requested in the meantime.
+     */
+    private void commitRender(RenderModel model, int generation) {
+        if (generation != renderGeneration)
+            return;
+
+        // the whole batch goes to the overlay, which invalidates the map once.
+        clusterOverlay.setClusters(model.clusters);
+        renderedZoom = model.zoom;
+        renderedArea = model.area;
     }
 
     /**
-     * Creates a custom Drawable for a marker, displaying the specified number.
-     *
-     * @param number the number to display on the marker
-     * @return a {@link Drawable} representing the marker icon
+     * The clusters to show for an area at a zoom level, built by {@link #clusterExecutor}.
      */
-    private Drawable createMarkerWithNumber(int number) {
-        LayoutInflater inflater = LayoutInflater.from(context);
-        View markerView = inflater.inflate(R.layout.custom_mark, null);
+    private static final class RenderModel {
+        final int zoom;
+        final BoundingBox area;
+        final List<ClusterEngine.Cluster> clusters;
+
+        RenderModel(int zoom, BoundingBox area, List<ClusterEngine.Cluster> clusters) {
+            this.zoom = zoom;
+            this.area = area;
+            this.clusters = Collections.unmodifiableList(clusters);
+        }
+    }
 
-        TextView markerNumber = markerView.findViewById(R.id.marker_number);
-        markerNumber.setText(String.valueOf(number));
+    /**
+     * A change of the number of notes of a cluster, waiting to be applied to {@link #clusterEngine}.
+     */
+    private static final class WeightChange {
+        final GeoPoint point;
+        final int weightDelta;
 
-        markerView.measure(View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED),
-                View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED));
-        markerView.layout(0, 0, markerView.getMeasuredWidth(), markerView.getMeasuredHeight());
+        WeightChange(GeoPoint point, int weightDelta) {
+            this.point = point;
+            this.weightDelta = weightDelta;
+        }
+    }
 
-        Bitmap bitmap = Bitmap.createBitmap(markerView.getMeasuredWidth(), markerView.getMeasuredHeight(), Bitmap.Config.ARGB_8888);
-        Canvas canvas = new Canvas(bitmap);
-        markerView.draw(canvas);
+    /**
+     * Removes every note and marker from the map.
+     */
+    public void clearMarkers() {
+        if (mapView == null)
+            return;
+
+        markerCounts.clear();
+        noteClusters.clear();
+        clusterIndex.clear();
+        nearbyIndex.clear();
+        pendingChanges = new ArrayList<>();
+        clusterExecutor.execute(clusterEngine::clear);
+        renderGeneration++;
+        renderedArea = null;
+        mapView.removeCallbacks(renderRunnable);
+        if (clusterOverlay != null)
+            clusterOverlay.clear();
+    }
+
+    /**
+     * A single position opens its notes, a group of positions is zoomed in until it splits.
+     */
+    private boolean onClusterClick(ClusterEngine.Cluster cluster) {
+        if (cluster.getLeaf() != null)
+            return clickListener != null && clickListener.onMarkerClick(cluster.getLeaf());
 
-        return new BitmapDrawable(context.getResources(), bitmap);
+        mapView.getController().animateTo(cluster.getPosition(), (double) cluster.getExpansionZoom(), null);
+        return true;
+    }
+
+    private static boolean contains(BoundingBox outer, BoundingBox inner) {
+        return outer.getLatNorth() >= inner.getLatNorth() && outer.getLatSouth() <= inner.getLatSouth()
+                && outer.getLonEast() >= inner.getLonEast() && outer.getLonWest() <= inner.getLonWest();
     }
 
     public enum MarkerDistance {
@@ -293,7 +536,13 @@ public class MapHelper {
      * @return true if the points are within a 3-meter or 100-meter distance, false otherwise
      */
     public static boolean arePointsClose(GeoPoint p1, GeoPoint p2, MarkerDistance markerDistance) {
-        double distance = p1.distanceToAsDouble(p2);
-        return markerDistance == MarkerDistance.TOO_CLOSE ? distance < 3 : distance < maxDistance;
+        return GeoMath.isWithin(p1.getLatitude(), p1.getLongitude(), p2.getLatitude(), p2.getLongitude(), distanceOf(markerDistance));
+    }
+
+    /**
+     * @return the threshold in meters of the given distance
+     */
+    public static double distanceOf(MarkerDistance markerDistance) {
+        return markerDistance == MarkerDistance.TOO_CLOSE ? clusterDistance : maxDistance;
     }
 }
@@ -0,0 +1,115 @@
+package com.peppe289.echotrail.utils;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.util.LruCache;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+
+import com.peppe289.echotrail.R;
+
+/**
+ * The icons of the markers of the map, one per number displayed.
+ * <p>
+ * Rendering an icon inflates {@code R.layout.custom_mark}, lays it out and draws it in a new
+ * bitmap, so the icons are kept in an LRU cache shared by every {@link MapHelper}: once an icon
+ * is rendered, the next markers with the same number reuse the same drawable. Numbers above
+ * {@link #MAX_NUMBER} share the "99+" icon. The cache is cleared when the system asks to trim
+ * memory and when the configuration changes (the icon depends on the theme and the density).
+ * </p>
+ * All the methods must be called from the main thread.
+ */
+public class MarkerIconCache {
+    /**
+     * Greatest number displayed on an icon, the bigger ones are displayed as "99+".
+     */
+    public static final int MAX_NUMBER = 99;
+
+    /**
+     * Max size of the cache in kilobytes.
+     */
+    private static final int MAX_SIZE_KB = 2 * 1024;
+
+    private static final LruCache<Integer, BitmapDrawable> icons = new LruCache<Integer, BitmapDrawable>(MAX_SIZE_KB) {
+        @Override
+        protected int sizeOf(Integer key, BitmapDrawable value) {
+            return Math.max(1, value.getBitmap().getByteCount() / 1024);
+        }
+    };
+
+    private static boolean registered;
+
+    private MarkerIconCache() {
+    }
+
+    /**
+     * Returns the icon displaying the given number, rendering it only if it isn't cached.
+     * <p>
+     * The drawable is shared by all the markers with the same number: it must not be modified.
+     * </p>
+     */
+    public static BitmapDrawable get(Context context, int number) {
+        registerTrimCallback(context);
+
+        int key = Math.min(number, MAX_NUMBER + 1);
+        BitmapDrawable icon = icons.get(key);
+        if (icon == null) {
+            icon = render(context, key > MAX_NUMBER ? MAX_NUMBER + "+" : String.valueOf(key));
+            icons.put(key, icon);
+        }
+        return icon;
+    }
+
+    public static void clear() {
+        icons.evictAll();
+    }
+
+    private static BitmapDrawable render(Context context, String text) {
+        LayoutInflater inflater = LayoutInflater.from(context);
+        View markerView = inflater.inflate(R.layout.custom_mark, null);
+
+        TextView markerNumber = markerView.findViewById(R.id.marker_number);
+        markerNumber.setText(text);
+
+        markerView.measure(View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED),
+                View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED));
+        markerView.layout(0, 0, markerView.getMeasuredWidth(), markerView.getMeasuredHeight());
+
+        Bitmap bitmap = Bitmap.createBitmap(markerView.getMeasuredWidth(), markerView.getMeasuredHeight(), Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        markerView.draw(canvas);
+
+        return new BitmapDrawable(context.getResources(), bitmap);
+    }
+
+    private static void registerTrimCallback(Context context) {
+        if (registered)
+            return;
+
+        registered = true;
+        context.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= TRIM_MEMORY_UI_HIDDEN)
+                    clear();
+            }
+
+            @Override
+            public void onConfigurationChanged(@NonNull Configuration newConfig) {
+                clear();
+            }
+
+            @Override
+            public void onLowMemory() {
+                clear();
+            }
+        });
+    }
+}
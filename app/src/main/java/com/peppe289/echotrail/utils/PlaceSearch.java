@@ -0,0 +1,358 @@
+package com.peppe289.echotrail.utils;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.JsonReader;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.peppe289.echotrail.adapter.SuggestionsAdapter.CityProprieties;
+import com.peppe289.echotrail.utils.callback.HelperCallback;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Search of the places by name, on the device first and then through Nominatim.
+ * <p>
+ * The places already known by the {@link Gazetteer} are returned at once, without network. Unless the
+ * query is answered by the cache, Nominatim is asked too and its places are added after the local ones
+ * (the callback is called again); they are also learned by the gazetteer, for the next searches.
+ * </p>
+ * <p>
+ * The queries are normalized (case, accents, spaces) and their results kept in an LRU cache shared
+ * by every search box. A query that only adds words to a cached one is answered filtering the cached
+ * results, when those were all the places found (fewer than {@link #MAX_RESULTS}) and some of them
+ * still match: Nominatim returns the places matching every word, so a longer query can only find
+ * fewer places. The filtered results aren't cached, only the ones of the server are.
+ * </p>
+ * <p>
+ * Each instance shows the results of its last query only: starting a new search drops the previous
+ * one, and cancels its HTTP call if no other search is waiting for it. Identical queries running at
+ * the same time share the same call.
+ * </p>
+ * <p>
+ * The response is decoded while it is downloaded, keeping only the name and the position of the first
+ * {@link #MAX_RESULTS} places: the rest of the body is never read.
+ * </p>
+ * All the methods must be called from the main thread, the callbacks run on the main thread.
+ */
+public class PlaceSearch {
+    private static final String TAG = "PlaceSearch";
+
+    /**
+     * Max number of places asked to the server and decoded from the response.
+     */
+    public static final int MAX_RESULTS = 10;
+    private static final int CACHE_ENTRIES = 64;
+
+    private static final HttpUrl SEARCH_URL = HttpUrl.get("https://nominatim.openstreetmap.org/search");
+    private static final String USER_AGENT = "EchoTrailApp/1.0 ()";
+
+    private static final OkHttpClient client = new OkHttpClient();
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private static final LruCache<String, List<CityProprieties>> cache = new LruCache<>(CACHE_ENTRIES);
+    /**
+     * The calls running, by normalized query.
+     */
+    private static final Map<String, InFlight> inFlight = new HashMap<>();
+
+    /**
+     * Incremented by every search, the results of the older ones are dropped.
+     */
+    private int generation;
+    private final Gazetteer gazetteer;
+    @Nullable
+    private String pendingQuery;
+    @Nullable
+    private HelperCallback<List<CityProprieties>, ErrorType> pendingCallback;
+
+    public PlaceSearch(Context context) {
+        this.gazetteer = Gazetteer.getInstance(context);
+    }
+
+    /**
+     * Searches the places matching the query, replacing the previous search.
+     *
+     * @param callback receives the places found, not called if another search starts first; called
+     *                 twice if the places on the device are shown before the ones of the server
+     */
+    public void search(String query, HelperCallback<List<CityProprieties>, ErrorType> callback) {
+        int searchGeneration = ++generation;
+        leave();
+
+        String normalized = normalize(query);
+        if (normalized.isEmpty()) {
+            callback.onSuccess(Collections.emptyList());
+            return;
+        }
+
+        // a prefix of a longer name matches it on the device, the server still finds the others.
+        List<CityProprieties> local = gazetteer.find(normalized, MAX_RESULTS);
+        List<CityProprieties> cached = findCached(normalized);
+        if (cached != null) {
+            callback.onSuccess(merge(local, cached));
+            return;
+        }
+
+        if (!local.isEmpty())
+            callback.onSuccess(local);
+
+        HelperCallback<List<CityProprieties>, ErrorType> waiter = new HelperCallback<List<CityProprieties>, ErrorType>() {
+            @Override
+            public void onSuccess(List<CityProprieties> result) {
+                if (searchGeneration != generation)
+                    return;
+
+                pendingQuery = null;
+                pendingCallback = null;
+                callback.onSuccess(merge(local, result));
+            }
+
+            @Override
+            public void onError(ErrorType error) {
+                if (searchGeneration != generation)
+                    return;
+
+                pendingQuery = null;
+                pendingCallback = null;
+                // offline, the places on the device are already shown.
+                if (local.isEmpty())
+                    callback.onError(error);
+            }
+        };
+
+        InFlight flight = inFlight.get(normalized);
+        if (flight == null) {
+            flight = new InFlight(fetch(normalized, gazetteer));
+            inFlight.put(normalized, flight);
+        }
+        flight.waiters.add(waiter);
+        pendingQuery = normalized;
+        pendingCallback = waiter;
+    }
+
+    /**
+     * Drops the running search, to call when the results aren't shown anymore.
+     */
+    public void cancel() {
+        generation++;
+        leave();
+        gazetteer.flush();
+    }
+
+    /**
+     * Stops waiting for the pending call, cancelling it if nobody else waits for it.
+     */
+    private void leave() {
+        if (pendingQuery == null)
+            return;
+
+        InFlight flight = inFlight.get(pendingQuery);
+        if (flight != null) {
+            flight.waiters.remove(pendingCallback);
+            if (flight.waiters.isEmpty()) {
+                flight.call.cancel();
+                inFlight.remove(pendingQuery);
+            }
+        }
+        pendingQuery = null;
+        pendingCallback = null;
+    }
+
+    /**
+     * @return the cached results of the query, or the ones of a query it extends with more words
+     * still matching the whole query, {@code null} if the server must be asked
+     */
+    @Nullable
+    private static List<CityProprieties> findCached(String normalized) {
+        List<CityProprieties> cached = cache.get(normalized);
+        if (cached != null)
+            return cached;
+
+        for (int end = normalized.lastIndexOf(' '); end > 0; end = normalized.lastIndexOf(' ', end - 1)) {
+            List<CityProprieties> shorter = cache.get(normalized.substring(0, end));
+            if (shorter == null)
+                continue;
+            // the server could have found more than these.
+            if (shorter.size() >= MAX_RESULTS)
+                return null;
+
+            String[] words = normalized.substring(end + 1).split(" ");
+            List<CityProprieties> filtered = new ArrayList<>();
+            for (CityProprieties place : shorter) {
+                if (containsAll(normalize(place.name), words))
+                    filtered.add(place);
+            }
+            // the server matches the words also on fields not in the name (like the postcode).
+            return filtered.isEmpty() ? null : filtered;
+        }
+        return null;
+    }
+
+    /**
+     * @return the local places followed by the remote ones not already among them
+     */
+    private static List<CityProprieties> merge(List<CityProprieties> local, List<CityProprieties> remote) {
+        if (local.isEmpty())
+            return remote;
+
+        List<CityProprieties> merged = new ArrayList<>(local);
+        for (CityProprieties place : remote) {
+            if (merged.size() == MAX_RESULTS)
+                break;
+
+            boolean known = false;
+            for (CityProprieties other : local)
+                known |= other.name.equals(place.name);
+            if (!known)
+                merged.add(place);
+        }
+        return merged;
+    }
+
+    private static boolean containsAll(String text, String[] words) {
+        for (String word : words) {
+            if (!text.contains(word))
+                return false;
+        }
+        return true;
+    }
+
+    private static Call fetch(String normalized, Gazetteer gazetteer) {
+        HttpUrl url = SEARCH_URL.newBuilder()
+                .addQueryParameter("q", normalized)
+                .addQueryParameter("format", "json")
+                .addQueryParameter("limit", String.valueOf(MAX_RESULTS))
+                .build();
+        Request request = new Request.Builder().url(url)
+                .header("User-Agent", USER_AGENT).build();
+
+        Call call = client.newCall(request);
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                if (!call.isCanceled())
+                    mainHandler.post(() -> complete(normalized, call, null));
+            }
+
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) {
+                List<CityProprieties> places = null;
+                try (ResponseBody body = response.body()) {
+                    if (response.isSuccessful() && body != null)
+                        places = parse(body.charStream());
+                } catch (IOException | IllegalStateException | NumberFormatException e) {
+                    Log.w(TAG, "Search of \"" + normalized + "\" failed", e);
+                }
+
+                if (places != null)
+                    gazetteer.learn(places);
+
+                List<CityProprieties> result = places;
+                mainHandler.post(() -> complete(normalized, call, result));
+            }
+        });
+        return call;
+    }
+
+    /**
+     * Hands out the result of a call to the searches waiting for it.
+     *
+     * @param places the places found, {@code null} if the call failed
+     */
+    private static void complete(String normalized, Call call, @Nullable List<CityProprieties> places) {
+        InFlight flight = inFlight.get(normalized);
+        // cancelled in the meanwhile.
+        if (flight == null || flight.call != call)
+            return;
+
+        inFlight.remove(normalized);
+        if (places != null)
+            cache.put(normalized, places);
+
+        for (HelperCallback<List<CityProprieties>, ErrorType> waiter : new ArrayList<>(flight.waiters)) {
+            if (places != null)
+                waiter.onSuccess(places);
+            else
+                waiter.onError(ErrorType.UNKNOWN_ERROR);
+        }
+    }
+
+    /**
+     * Reads the places from the array of results, stopping after {@link #MAX_RESULTS}.
+     */
+    private static List<CityProprieties> parse(Reader body) throws IOException {
+        List<CityProprieties> places = new ArrayList<>(MAX_RESULTS);
+        JsonReader reader = new JsonReader(body);
+        reader.beginArray();
+        while (reader.hasNext() && places.size() < MAX_RESULTS) {
+            String name = null;
+            double latitude = Double.NaN;
+            double longitude = Double.NaN;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "display_name":
+                        name = reader.nextString();
+                        break;
+                    // sent as strings, nextDouble() parses them.
+                    case "lat":
+                        latitude = reader.nextDouble();
+                        break;
+                    case "lon":
+                        longitude = reader.nextDouble();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (name != null && !Double.isNaN(latitude) && !Double.isNaN(longitude))
+                places.add(new CityProprieties(name, latitude, longitude));
+        }
+        // the body is closed by the caller, the places after the limit are never downloaded.
+        return Collections.unmodifiableList(places);
+    }
+
+    /**
+     * @return the query lower case, without accents and with single spaces between the words
+     */
+    static String normalize(String query) {
+        String decomposed = Normalizer.normalize(query, Normalizer.Form.NFD);
+        return decomposed.replaceAll("\\p{M}", "")
+                .toLowerCase(Locale.ROOT)
+                .replaceAll("[\\s,]+", " ")
+                .trim();
+    }
+
+    private static class InFlight {
+        final Call call;
+        final List<HelperCallback<List<CityProprieties>, ErrorType>> waiters = new ArrayList<>(1);
+
+        InFlight(Call call) {
+            this.call = call;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.peppe289.echotrail.utils;
+
+import androidx.annotation.Nullable;
+
+import org.osmdroid.util.GeoPoint;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A spatial hash grid of values placed on the map.
+ * <p>
+ * The world is divided in rows of {@code cellMeters} of latitude, and every row in cells about
+ * {@code cellMeters} wide (narrower in degrees near the equator, wider near the poles). A value is
+ * stored in the bucket of the cell of its point, so looking for the values close to a point only
+ * checks the few cells around it instead of every value: with a radius close to the cell size,
+ * lookups are O(1) amortized whatever the number of values.
+ * </p>
+ * The index isn't thread safe.
+ *
+ * @param <T> the type of the values
+ */
+public class SpatialIndex<T> {
+    private final double cellMeters;
+    private final Map<Long, List<Item<T>>> cells = new HashMap<>();
+    private int size;
+
+    /**
+     * @param cellMeters the size of the cells, best set to the radius mostly used for the lookups
+     */
+    public SpatialIndex(double cellMeters) {
+        this.cellMeters = cellMeters;
+    }
+
+    /**
+     * Adds a value at the given point.
+     */
+    public void add(GeoPoint point, T value) {
+        long key = key(point.getLatitude(), point.getLongitude());
+        List<Item<T>> bucket = cells.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<>(2);
+            cells.put(key, bucket);
+        }
+        bucket.add(new Item<>(point, value));
+        size++;
+    }
+
+    /**
+     * Removes a value added at the given point.
+     *
+     * @return {@code true} if the value was found
+     */
+    public boolean remove(GeoPoint point, T value) {
+        long key = key(point.getLatitude(), point.getLongitude());
+        List<Item<T>> bucket = cells.get(key);
+        if (bucket == null)
+            return false;
+
+        Iterator<Item<T>> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().value.equals(value)) {
+                iterator.remove();
+                size--;
+                if (bucket.isEmpty())
+                    cells.remove(key);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the value closest to the point, within the given distance.
+     *
+     * @param radiusMeters max distance, excluded
+     * @return the closest value, {@code null} if none is within the distance
+     */
+    @Nullable
+    public T findNearest(GeoPoint point, double radiusMeters) {
+        T nearest = null;
+        double nearestDistance = radiusMeters;
+        for (Item<T> item : candidates(point, radiusMeters)) {
+            double distance = GeoMath.distance(point.getLatitude(), point.getLongitude(),
+                    item.point.getLatitude(), item.point.getLongitude());
+            if (distance < nearestDistance) {
+                nearest = item.value;
+                nearestDistance = distance;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Finds every value within the given distance from the point.
+     *
+     * @param radiusMeters max distance, excluded
+     */
+    public List<T> findWithin(GeoPoint point, double radiusMeters) {
+        List<T> found = new ArrayList<>();
+        GeoMath.Fence fence = new GeoMath.Fence(point.getLatitude(), point.getLongitude(), radiusMeters);
+        for (Item<T> item : candidates(point, radiusMeters)) {
+            if (fence.contains(item.point.getLatitude(), item.point.getLongitude()))
+                found.add(item.value);
+        }
+        return found;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        cells.clear();
+        size = 0;
+    }
+
+    /**
+     * Collects the values of the cells intersecting the box around the point.
+     */
+    private List<Item<T>> candidates(GeoPoint point, double radiusMeters) {
+        double latitude = point.getLatitude();
+        double longitude = point.getLongitude();
+        double latDelta = radiusMeters / GeoHash.METERS_PER_DEGREE;
+        double cos = Math.cos(Math.toRadians(Math.min(90.0, Math.abs(latitude) + latDelta)));
+        double lonDelta = cos < 1e-6 ? 180.0 : Math.min(180.0, radiusMeters / (GeoHash.METERS_PER_DEGREE * cos));
+
+        List<Item<T>> candidates = new ArrayList<>();
+        int firstRow = row(latitude - latDelta);
+        int lastRow = row(latitude + latDelta);
+        for (int row = firstRow; row <= lastRow; row++) {
+            double width = rowCellWidth(row);
+            int firstCol = column(longitude - lonDelta, width);
+            int lastCol = column(longitude + lonDelta, width);
+            for (int col = firstCol; col <= lastCol; col++) {
+                List<Item<T>> bucket = cells.get(((long) row << 32) | (col & 0xffffffffL));
+                if (bucket != null)
+                    candidates.addAll(bucket);
+            }
+        }
+        return candidates;
+    }
+
+    private long key(double latitude, double longitude) {
+        int row = row(latitude);
+        int col = column(longitude, rowCellWidth(row));
+        return ((long) row << 32) | (col & 0xffffffffL);
+    }
+
+    private int row(double latitude) {
+        double clamped = Math.max(-90.0, Math.min(90.0, latitude));
+        return (int) Math.floor((clamped + 90.0) * GeoHash.METERS_PER_DEGREE / cellMeters);
+    }
+
+    /**
+     * @return the width in degrees of the cells of a row, measured on the edge of the row closest
+     * to the pole so that a cell is never narrower than {@code cellMeters}
+     */
+    private double rowCellWidth(int row) {
+        double south = row * cellMeters / GeoHash.METERS_PER_DEGREE - 90.0;
+        double north = south + cellMeters / GeoHash.METERS_PER_DEGREE;
+        double cos = Math.cos(Math.toRadians(Math.min(90.0, Math.max(Math.abs(south), Math.abs(north)))));
+        return cos < 1e-6 ? 360.0 : Math.min(360.0, cellMeters / (GeoHash.METERS_PER_DEGREE * cos));
+    }
+
+    private static int column(double longitude, double width) {
+        double clamped = Math.max(-180.0, Math.min(180.0, longitude));
+        return (int) Math.floor((clamped + 180.0) / width);
+    }
+
+    private static class Item<T> {
+        final GeoPoint point;
+        final T value;
+
+        Item(GeoPoint point, T value) {
+            this.point = point;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.peppe289.echotrail.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkCapabilities;
+import android.util.Log;
+
+import org.osmdroid.config.Configuration;
+import org.osmdroid.config.IConfigurationProvider;
+import org.osmdroid.tileprovider.cachemanager.CacheManager;
+import org.osmdroid.tileprovider.tilesource.ITileSource;
+import org.osmdroid.tileprovider.tilesource.OnlineTileSourceBase;
+import org.osmdroid.tileprovider.tilesource.TileSourcePolicyException;
+import org.osmdroid.util.BoundingBox;
+import org.osmdroid.util.GeoPoint;
+import org.osmdroid.views.MapView;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The on-device cache of the map tiles.
+ * <p>
+ * The tiles downloaded by osmdroid are stored in its SQLite cache, capped at {@link #DEFAULT_MAX_BYTES}
+ * and trimmed, when full, starting from the tiles that expire first (the least recently downloaded).
+ * Cached tiles are considered valid for {@link #EXPIRATION_MS} whatever the headers of the tile server,
+ * so the map is served from the cache first and a neighbourhood already seen is shown without network.
+ * </p>
+ * <p>
+ * While on an unmetered network (Wi-Fi) the tiles around the position of the user are downloaded in
+ * advance for the zoom levels {@link #PREFETCH_MIN_ZOOM}-{@link #PREFETCH_MAX_ZOOM}, again only once the
+ * user moved farther than {@link #PREFETCH_MIN_MOVE} from the center of the last prefetch. The tile sources
+ * whose usage policy forbids bulk downloads (like OpenTopo) aren't prefetched.
+ * </p>
+ */
+public class TileCache {
+    private static final String TAG = "TileCache";
+
+    /**
+     * Default max size of the tile cache.
+     */
+    public static final long DEFAULT_MAX_BYTES = 200L * 1024 * 1024;
+
+    /**
+     * How long a cached tile is used without asking the server again.
+     */
+    private static final long EXPIRATION_MS = TimeUnit.DAYS.toMillis(30);
+
+    private static final int PREFETCH_MIN_ZOOM = 14;
+    private static final int PREFETCH_MAX_ZOOM = 20;
+
+    /**
+     * Radius in meters of the area prefetched around the user.
+     */
+    private static final double PREFETCH_RADIUS = 300;
+
+    /**
+     * Distance in meters from the center of the last prefetch after which the area is prefetched again,
+     * half {@link #PREFETCH_RADIUS}: the tiles of the last area stay cached for {@link #EXPIRATION_MS}.
+     */
+    private static final double PREFETCH_MIN_MOVE = PREFETCH_RADIUS / 2;
+
+    private static final String PREFERENCES_NAME = "tile_cache";
+    private static final String KEY_LAST_LATITUDE = "last_latitude";
+    private static final String KEY_LAST_LONGITUDE = "last_longitude";
+
+    private static boolean prefetching;
+    /**
+     * Center of the last prefetch started, read from the preferences the first time.
+     */
+    private static GeoPoint lastCenter;
+
+    private TileCache() {
+    }
+
+    /**
+     * Same as {@link #configure(Context, long)} with {@link #DEFAULT_MAX_BYTES}.
+     */
+    public static void configure(Context context) {
+        configure(context, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Configures the tile cache of osmdroid, to call before the map loads its tiles.
+     *
+     * @param maxBytes max size of the cache, it is trimmed to 80% of it when exceeded
+     */
+    public static void configure(Context context, long maxBytes) {
+        IConfigurationProvider configuration = Configuration.getInstance();
+        configuration.setUserAgentValue(context.getPackageName());
+        configuration.setTileFileSystemCacheMaxBytes(maxBytes);
+        configuration.setTileFileSystemCacheTrimBytes(maxBytes * 4 / 5);
+        configuration.setExpirationOverrideDuration(EXPIRATION_MS);
+    }
+
+    /**
+     * Downloads in background the tiles around the given position, if the tile source allows it,
+     * the device is on an unmetered network and the user moved from the last area prefetched.
+     * Cheap enough to call on every position update.
+     */
+    public static void prefetchAround(MapView mapView, GeoPoint position) {
+        if (prefetching)
+            return;
+
+        ITileSource tileSource = mapView.getTileProvider().getTileSource();
+        if (!(tileSource instanceof OnlineTileSourceBase)
+                || !((OnlineTileSourceBase) tileSource).getTileSourcePolicy().acceptsBulkDownload())
+            return;
+
+        int maxZoom = Math.min(PREFETCH_MAX_ZOOM, tileSource.getMaximumZoomLevel());
+        if (maxZoom < PREFETCH_MIN_ZOOM)
+            return;
+
+        Context context = mapView.getContext();
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        if (lastCenter == null && preferences.contains(KEY_LAST_LATITUDE)) {
+            lastCenter = new GeoPoint(
+                    Double.longBitsToDouble(preferences.getLong(KEY_LAST_LATITUDE, 0)),
+                    Double.longBitsToDouble(preferences.getLong(KEY_LAST_LONGITUDE, 0)));
+        }
+        if (lastCenter != null && lastCenter.distanceToAsDouble(position) <= PREFETCH_MIN_MOVE)
+            return;
+        if (!isUnmetered(context))
+            return;
+
+        CacheManager cacheManager;
+        try {
+            cacheManager = new CacheManager(mapView);
+        } catch (TileSourcePolicyException e) {
+            Log.i(TAG, "Tile source " + tileSource.name() + " doesn't allow prefetching", e);
+            return;
+        }
+
+        double[] box = GeoHash.boundingBox(position.getLatitude(), position.getLongitude(), PREFETCH_RADIUS);
+        BoundingBox area = new BoundingBox(box[2], box[3], box[0], box[1]);
+        // a failed prefetch isn't retried until the user moves, the tiles are downloaded while browsing anyway.
+        prefetching = true;
+        lastCenter = position;
+        preferences.edit()
+                .putLong(KEY_LAST_LATITUDE, Double.doubleToLongBits(position.getLatitude()))
+                .putLong(KEY_LAST_LONGITUDE, Double.doubleToLongBits(position.getLongitude()))
+                .apply();
+        cacheManager.downloadAreaAsyncNoUI(context, area, PREFETCH_MIN_ZOOM, maxZoom, new CacheManager.CacheManagerCallback() {
+            @Override
+            public void onTaskComplete() {
+                prefetching = false;
+            }
+
+            @Override
+            public void onTaskFailed(int errors) {
+                prefetching = false;
+                Log.w(TAG, errors + " tiles not prefetched");
+            }
+
+            @Override
+            public void updateProgress(int progress, int currentZoomLevel, int zoomMin, int zoomMax) {
+            }
+
+            @Override
+            public void downloadStarted() {
+            }
+
+            @Override
+            public void setPossibleTilesInArea(int total) {
+            }
+        });
+    }
+
+    private static boolean isUnmetered(Context context) {
+        ConnectivityManager connectivityManager = context.getSystemService(ConnectivityManager.class);
+        if (connectivityManager == null)
+            return false;
+
+        NetworkCapabilities capabilities = connectivityManager.getNetworkCapabilities(connectivityManager.getActiveNetwork());
+        return capabilities != null
+                && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED)
+                && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET);
+    }
+}
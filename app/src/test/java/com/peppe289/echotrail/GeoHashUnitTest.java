@@ -0,0 +1,105 @@
+package com.peppe289.echotrail;
+
+import com.peppe289.echotrail.utils.GeoHash;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * The prefixes of {@link GeoHash} must cover every point of the area queried.
+ */
+public class GeoHashUnitTest {
+
+    @Test
+    public void encode_matchesKnownValues() {
+        Assert.assertEquals("ezs42", GeoHash.encode(42.605, -5.603, 5));
+        Assert.assertEquals("u4pruydqqv", GeoHash.encode(57.64911, 10.40744));
+        Assert.assertEquals("s0000", GeoHash.encode(0, 0, 5));
+    }
+
+    @Test
+    public void bounds_containTheEncodedPoint() {
+        double[][] points = {{40.85, 14.27}, {-33.9, 151.2}, {0, 0}, {89.99, -179.99}, {-90, 180}};
+        for (double[] point : points) {
+            for (int precision = 1; precision <= GeoHash.NOTE_PRECISION; precision++) {
+                double[] bounds = GeoHash.bounds(GeoHash.encode(point[0], point[1], precision));
+                Assert.assertTrue(bounds[0] <= point[0] && point[0] <= bounds[2]);
+                Assert.assertTrue(bounds[1] <= point[1] && point[1] <= bounds[3]);
+                Assert.assertEquals(GeoHash.cellHeight(precision), bounds[2] - bounds[0], 1e-9);
+                Assert.assertEquals(GeoHash.cellWidth(precision), bounds[3] - bounds[1], 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void coveringPrefixes_coverTheWholeBox() {
+        double[][] boxes = {
+                {40.80, 14.20, 40.90, 14.35},
+                {-34.0, 151.0, -33.8, 151.3},
+                {-0.01, -0.01, 0.01, 0.01},
+                {10, 20, 10.00001, 20.00001},
+                {30, -10, 60, 40},
+        };
+        for (double[] box : boxes) {
+            List<String> prefixes = GeoHash.coveringPrefixes(box[0], box[1], box[2], box[3]);
+            Assert.assertFalse(prefixes.isEmpty());
+            Assert.assertTrue(prefixes.size() <= GeoHash.MAX_COVERING_CELLS);
+            for (int i = 0; i <= 10; i++) {
+                for (int j = 0; j <= 10; j++) {
+                    double lat = box[0] + (box[2] - box[0]) * i / 10;
+                    double lon = box[1] + (box[3] - box[1]) * j / 10;
+                    assertCovered(prefixes, lat, lon);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void coveringPrefixes_splitAtTheAntimeridian() {
+        List<String> prefixes = GeoHash.coveringPrefixes(-16.9, 179.8, -16.7, -179.9);
+
+        assertCovered(prefixes, -16.8, 179.9);
+        assertCovered(prefixes, -16.8, -179.95);
+        // nessuna cella dall'altra parte del mondo
+        for (String prefix : prefixes) {
+            double[] bounds = GeoHash.bounds(prefix);
+            Assert.assertTrue(bounds[1] >= 179 || bounds[3] <= -179);
+        }
+    }
+
+    @Test
+    public void coveringPrefixes_nearThePoles() {
+        // vicino al polo il raggio copre tutte le longitudini
+        double[] box = GeoHash.boundingBox(89.999, 0, 1000);
+        Assert.assertEquals(90.0, box[2], 0);
+        Assert.assertEquals(-180.0, box[1], 0);
+        Assert.assertEquals(180.0, box[3], 0);
+
+        List<String> north = GeoHash.coveringPrefixes(89.999, 0, 1000);
+        assertCovered(north, 90, 0);
+        assertCovered(north, 89.999, 179.9);
+        assertCovered(north, 89.999, -179.9);
+
+        List<String> south = GeoHash.coveringPrefixes(-95, -10, -89.5, 10);
+        assertCovered(south, -90, 0);
+        assertCovered(south, -89.5, 10);
+    }
+
+    @Test
+    public void contains_handlesTheAntimeridian() {
+        Assert.assertTrue(GeoHash.contains(-1, 179, 1, -179, 0, 179.5));
+        Assert.assertTrue(GeoHash.contains(-1, 179, 1, -179, 0, -179.5));
+        Assert.assertFalse(GeoHash.contains(-1, 179, 1, -179, 0, 0));
+        Assert.assertFalse(GeoHash.contains(-1, 179, 1, -179, 2, 179.5));
+    }
+
+    private static void assertCovered(List<String> prefixes, double latitude, double longitude) {
+        String hash = GeoHash.encode(latitude, longitude);
+        for (String prefix : prefixes) {
+            if (hash.startsWith(prefix))
+                return;
+        }
+        Assert.fail("(" + latitude + ", " + longitude + ") is not covered by " + prefixes);
+    }
+}
@@ -0,0 +1,63 @@
+package com.peppe289.echotrail;
+
+import com.peppe289.echotrail.utils.GeoMath;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * The fast checks of {@link GeoMath} must give the same result of the exact distance.
+ */
+public class GeoMathUnitTest {
+
+    @Test
+    public void distance_matchesKnownValue() {
+        // un grado di latitudine sul meridiano
+        Assert.assertEquals(GeoMath.EARTH_RADIUS * Math.PI / 180, GeoMath.distance(40, 14, 41, 14), 1e-6);
+        Assert.assertEquals(0, GeoMath.distance(40.85, 14.27, 40.85, 14.27), 0);
+    }
+
+    @Test
+    public void fence_agreesWithExactDistance() {
+        Random random = new Random(42);
+        double[] radii = {3, 100, 2000, 50_000};
+        double[] centers = {0, 40.85, -33.9, 79.9, 85};
+
+        for (double radius : radii) {
+            for (double latitude : centers) {
+                double longitude = random.nextDouble() * 360 - 180;
+                GeoMath.Fence fence = new GeoMath.Fence(latitude, longitude, radius);
+                double span = GeoMath.metersToLatitude(radius * 2);
+                for (int i = 0; i < 2000; i++) {
+                    double lat = Math.max(-90, Math.min(90, latitude + (random.nextDouble() * 2 - 1) * span));
+                    double lon = longitude + (random.nextDouble() * 2 - 1) * span / Math.cos(Math.toRadians(latitude));
+                    boolean expected = GeoMath.distance(latitude, longitude, lat, lon) < radius;
+                    Assert.assertEquals(expected, fence.contains(lat, lon));
+                    Assert.assertEquals(expected, GeoMath.isWithin(latitude, longitude, lat, lon, radius));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void fence_crossesTheAntimeridian() {
+        GeoMath.Fence fence = new GeoMath.Fence(0, 179.9995, 100);
+        Assert.assertTrue(fence.contains(0, -179.9999));
+        Assert.assertFalse(fence.contains(0, -179.99));
+    }
+
+    @Test
+    public void filter_returnsTheIndexesInside() {
+        GeoMath.Fence fence = new GeoMath.Fence(40.85, 14.27, 100);
+        double step = GeoMath.metersToLatitude(60);
+        double[] latitudes = {40.85, 40.85 + step, 40.85 + 2 * step, 40.85 - step};
+        double[] longitudes = {14.27, 14.27, 14.27, 14.27};
+        int[] inside = new int[latitudes.length];
+
+        int found = fence.filter(latitudes, longitudes, latitudes.length, inside);
+
+        Assert.assertEquals(3, found);
+        Assert.assertArrayEquals(new int[]{0, 1, 3}, java.util.Arrays.copyOf(inside, found));
+    }
+}
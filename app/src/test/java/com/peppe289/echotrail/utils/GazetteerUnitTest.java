@@ -0,0 +1,93 @@
+package com.peppe289.echotrail.utils;
+
+import com.peppe289.echotrail.adapter.SuggestionsAdapter.CityProprieties;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The places written by {@link Gazetteer} must be found again, by prefix, from the mapped file.
+ */
+public class GazetteerUnitTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void find_readsBackTheWrittenPlaces() throws IOException {
+        File file = write(folder.newFile(), Arrays.asList(
+                new CityProprieties("Napoli, Campania, Italia", 40.85, 14.27),
+                new CityProprieties("Napa, California, United States", 38.30, -122.29),
+                new CityProprieties("Roma, Lazio, Italia", 41.89, 12.48),
+                new CityProprieties("Nardò, Puglia, Italia", 40.18, 18.03),
+                new CityProprieties("Łódź, Polska", 51.76, 19.46)));
+
+        Gazetteer gazetteer = read(file);
+
+        // in ordine di nome normalizzato
+        List<CityProprieties> found = gazetteer.find("na", 10);
+        Assert.assertEquals(3, found.size());
+        Assert.assertEquals("Napa, California, United States", found.get(0).name);
+        Assert.assertEquals("Napoli, Campania, Italia", found.get(1).name);
+        Assert.assertEquals("Nardò, Puglia, Italia", found.get(2).name);
+        Assert.assertEquals(40.85, found.get(1).latitude, 0);
+        Assert.assertEquals(14.27, found.get(1).longitude, 0);
+
+        Assert.assertEquals(1, gazetteer.find("nardo", 10).size());
+        Assert.assertEquals(1, gazetteer.find("roma", 10).size());
+        // il primo byte UTF-8 fuori dall'ASCII ha il suo bucket
+        Assert.assertEquals(1, gazetteer.find("łodz", 10).size());
+        Assert.assertTrue(gazetteer.find("milano", 10).isEmpty());
+        Assert.assertTrue(gazetteer.find("napolii", 10).isEmpty());
+        Assert.assertTrue(gazetteer.find("a", 10).isEmpty());
+    }
+
+    @Test
+    public void find_stopsAtMaxResults() throws IOException {
+        File file = write(folder.newFile(), Arrays.asList(
+                new CityProprieties("Sala", 0, 0),
+                new CityProprieties("Salerno", 0, 0),
+                new CityProprieties("Salò", 0, 0)));
+
+        Assert.assertEquals(2, read(file).find("sal", 2).size());
+    }
+
+    @Test
+    public void write_mergesThePlacesOfTheFile() throws IOException {
+        File file = write(folder.newFile(), Arrays.asList(new CityProprieties("Roma", 41.89, 12.48)));
+
+        Gazetteer gazetteer = read(file);
+        gazetteer.learn(Arrays.asList(
+                new CityProprieties("Rovigo", 45.07, 11.79),
+                new CityProprieties("Roma", 41.90, 12.50)));
+        gazetteer.write();
+
+        List<CityProprieties> found = read(file).find("ro", 10);
+        Assert.assertEquals(2, found.size());
+        // il posto imparato dopo sostituisce quello del file
+        Assert.assertEquals("Roma", found.get(0).name);
+        Assert.assertEquals(41.90, found.get(0).latitude, 0);
+        Assert.assertEquals("Rovigo", found.get(1).name);
+    }
+
+    private static File write(File file, List<CityProprieties> places) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        Gazetteer gazetteer = new Gazetteer(file);
+        gazetteer.learn(places);
+        gazetteer.write();
+        return file;
+    }
+
+    private static Gazetteer read(File file) {
+        Gazetteer gazetteer = new Gazetteer(file);
+        gazetteer.map();
+        return gazetteer;
+    }
+}
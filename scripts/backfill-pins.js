@@ -0,0 +1,146 @@
+/*
+ * One-off migration of the notes saved by the versions of the app without geohash.
+ *
+ * The map reads only the pins of the notes (notes/{country}/pins and users/{uid}/inbox), queried by
+ * geohash: a note saved without geohash would never be shown. For every note with coordinates and
+ * without geohash this script writes the geohash in both copies of the note (notes/notes/data and
+ * notes/{country}/data) and its pin, stamped with the server time so the delta sync of the devices
+ * downloads it. The notes already migrated are skipped, so it can be run again safely.
+ *
+ * It runs with the Admin SDK, outside of the security rules:
+ *
+ *   npm install firebase-admin
+ *   GOOGLE_APPLICATION_CREDENTIALS=service-account.json node scripts/backfill-pins.js [--dry-run]
+ */
+const admin = require('firebase-admin');
+
+const COLLECTION_NOTES = 'notes';
+const COLLECTION_USERS = 'users';
+const DOCUMENT_ALL = 'notes';
+const COLLECTION_DATA = 'data';
+const COLLECTION_PINS = 'pins';
+const COLLECTION_INBOX = 'inbox';
+
+const PIN_FIELDS = ['userId', 'coordinates', 'geohash', 'send_to', 'timestamp'];
+const PAGE_SIZE = 500;
+
+// same as GeoHash.NOTE_PRECISION of the app.
+const NOTE_PRECISION = 10;
+const BASE32 = '0123456789bcdefghjkmnpqrstuvwxyz';
+
+/**
+ * Same as GeoHash.encode of the app.
+ */
+function encode(latitude, longitude, precision = NOTE_PRECISION) {
+    let minLat = -90, maxLat = 90;
+    let minLon = -180, maxLon = 180;
+    let hash = '';
+    let evenBit = true;
+    let bit = 0;
+    let ch = 0;
+
+    while (hash.length < precision) {
+        if (evenBit) {
+            const mid = (minLon + maxLon) / 2;
+            if (longitude >= mid) {
+                ch = (ch << 1) | 1;
+                minLon = mid;
+            } else {
+                ch = ch << 1;
+                maxLon = mid;
+            }
+        } else {
+            const mid = (minLat + maxLat) / 2;
+            if (latitude >= mid) {
+                ch = (ch << 1) | 1;
+                minLat = mid;
+            } else {
+                ch = ch << 1;
+                maxLat = mid;
+            }
+        }
+        evenBit = !evenBit;
+
+        if (++bit === 5) {
+            hash += BASE32.charAt(ch);
+            bit = 0;
+            ch = 0;
+        }
+    }
+    return hash;
+}
+
+function pinData(note, geohash) {
+    const pin = {};
+    for (const field of PIN_FIELDS) {
+        if (note[field] !== undefined)
+            pin[field] = note[field];
+    }
+    pin.geohash = geohash;
+    pin.updatedAt = admin.firestore.FieldValue.serverTimestamp();
+    return pin;
+}
+
+/**
+ * Migrates the notes of a document of the notes collection: the global one or a country.
+ *
+ * @return the number of notes migrated
+ */
+async function migrate(db, writer, notesDocument, dryRun) {
+    const country = notesDocument.id === DOCUMENT_ALL ? null : notesDocument.id;
+    const data = notesDocument.collection(COLLECTION_DATA);
+    let migrated = 0;
+    let last = null;
+
+    for (;;) {
+        let query = data.orderBy(admin.firestore.FieldPath.documentId()).limit(PAGE_SIZE);
+        if (last)
+            query = query.startAfter(last);
+        const page = await query.get();
+        if (page.empty)
+            break;
+
+        for (const document of page.docs) {
+            const note = document.data();
+            if (!note.coordinates || note.geohash)
+                continue;
+
+            migrated++;
+            if (dryRun)
+                continue;
+
+            const geohash = encode(note.coordinates.latitude, note.coordinates.longitude);
+            writer.update(document.ref, {geohash});
+            // the pins are written from the country copy, the global one doesn't know the country.
+            if (!country)
+                continue;
+
+            const pinRef = note.send_to
+                ? db.collection(COLLECTION_USERS).doc(note.send_to).collection(COLLECTION_INBOX).doc(document.id)
+                : notesDocument.collection(COLLECTION_PINS).doc(document.id);
+            writer.set(pinRef, pinData(note, geohash));
+        }
+        last = page.docs[page.docs.length - 1];
+    }
+    return migrated;
+}
+
+async function main() {
+    const dryRun = process.argv.includes('--dry-run');
+    admin.initializeApp();
+    const db = admin.firestore();
+    const writer = db.bulkWriter();
+
+    // the country documents may have no fields, listDocuments() finds them anyway.
+    const documents = await db.collection(COLLECTION_NOTES).listDocuments();
+    for (const notesDocument of documents) {
+        const migrated = await migrate(db, writer, notesDocument, dryRun);
+        console.log(`${notesDocument.id}: ${migrated} notes ${dryRun ? 'to migrate' : 'migrated'}`);
+    }
+    await writer.close();
+}
+
+main().catch(error => {
+    console.error(error);
+    process.exit(1);
+});